@@ -0,0 +1,63 @@
+package com.artechra.jcacalculator;
+
+import java.util.List;
+
+/**
+ * A running calculation held by the adapter, which operands can be added to
+ * a few at a time.  Rather than recalculating an ever longer list of operands,
+ * a client appends just the new ones and the session folds them into its
+ * running result, so each append costs time in proportion to the number of
+ * operands appended.
+ * <p/>
+ * Sessions can be appended to and read from several threads at once.  Reading
+ * the current value never waits for appends in progress; it returns the value
+ * including every append that has completed.
+ * <p/>
+ * Sessions for the exact calculation types throw a ResultOverflowException
+ * from an append that would take the running result out of the range of a
+ * long, and leave the running result as it was.
+ *
+ * @author Eoin Woods
+ */
+public interface AccumulatorSession {
+
+    /**
+     * Fold a list of operands into the running result
+     * @param operands the integers to add to the calculation
+     * @throws IllegalStateException if the session is closed
+     */
+    public void append(List<Integer> operands) throws IllegalStateException;
+
+    /**
+     * Fold an array of operands into the running result
+     * @param operands the integers to add to the calculation
+     * @throws IllegalStateException if the session is closed
+     */
+    public void append(int[] operands) throws IllegalStateException;
+
+    /**
+     * Fold an array of long operands into the running result
+     * @param operands the numbers to add to the calculation
+     * @throws IllegalStateException if the session is closed
+     */
+    public void append(long[] operands) throws IllegalStateException;
+
+    /**
+     * Return the result of the calculation so far.  Before anything has been
+     * appended this is 0 for ADD sessions and 1 for MULTIPLY sessions.
+     * @return the running result
+     * @throws IllegalStateException if the session is closed
+     */
+    public long current() throws IllegalStateException;
+
+    /**
+     * Return the number of operands appended to the session so far
+     * @return the operand count
+     */
+    public long getOperandCount();
+
+    /**
+     * Close the session and discard its running result
+     */
+    public void close();
+}
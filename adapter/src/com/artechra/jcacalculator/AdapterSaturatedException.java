@@ -0,0 +1,19 @@
+package com.artechra.jcacalculator;
+
+import javax.resource.spi.ResourceAllocationException;
+
+/**
+ * Thrown when the adapter refuses to start a calculation because it already
+ * has as much work in progress as it has been configured to allow.  Unlike
+ * other failures this is a sign of overload rather than of a problem with the
+ * request, so callers may want to back off and try again later.
+ *
+ * @author Eoin Woods
+ */
+public class AdapterSaturatedException extends ResourceAllocationException {
+    private static final long serialVersionUID = 4117436212687542394L;
+
+    public AdapterSaturatedException(String message) {
+        super(message);
+    }
+}
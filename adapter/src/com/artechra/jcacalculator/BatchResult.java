@@ -0,0 +1,115 @@
+package com.artechra.jcacalculator;
+
+import java.io.Serializable;
+
+/**
+ * The results of a batch of calculations run with CalculatorConnection#performOperations().
+ * Each operand list in the batch is calculated independently, so some can fail
+ * while others succeed.  The entries in this object are in the same order as the
+ * operand lists that were passed in.
+ *
+ * @author Eoin Woods
+ */
+public class BatchResult implements Serializable {
+    private static final long serialVersionUID = 3620875613249780128L;
+
+    private final long[] results;
+    private final Exception[] failures;
+    private int failureCount;
+
+    /**
+     * Create an empty batch result, ready to be filled in
+     * @param size the number of calculations in the batch
+     */
+    public BatchResult(int size) {
+        this.results = new long[size];
+        this.failures = new Exception[size];
+        this.failureCount = 0;
+    }
+
+    /**
+     * Record the result of a successful calculation
+     * @param index the position of the calculation in the batch
+     * @param result the result of the calculation
+     */
+    public void setResult(int index, long result) {
+        this.results[index] = result;
+    }
+
+    /**
+     * Record the failure of a calculation
+     * @param index the position of the calculation in the batch
+     * @param failure the exception that caused the calculation to fail
+     */
+    public void setFailure(int index, Exception failure) {
+        if (this.failures[index] == null) {
+            this.failureCount++;
+        }
+        this.failures[index] = failure;
+        this.results[index] = 0;
+    }
+
+    /**
+     * Return the number of calculations in the batch
+     * @return the batch size
+     */
+    public int size() {
+        return this.results.length;
+    }
+
+    /**
+     * Did the specified calculation succeed?
+     * @param index the position of the calculation in the batch
+     * @return true if a result is available for the calculation
+     */
+    public boolean isSuccessful(int index) {
+        return this.failures[index] == null;
+    }
+
+    /**
+     * Return the result of the specified calculation
+     * @param index the position of the calculation in the batch
+     * @return the result of the calculation
+     * @throws IllegalStateException if the calculation failed
+     */
+    public long getResult(int index) throws IllegalStateException {
+        if (this.failures[index] != null) {
+            throw new IllegalStateException("Calculation " + index + " in batch failed", this.failures[index]);
+        }
+        return this.results[index];
+    }
+
+    /**
+     * Return the exception that caused the specified calculation to fail
+     * @param index the position of the calculation in the batch
+     * @return the failure or null if the calculation succeeded
+     */
+    public Exception getFailure(int index) {
+        return this.failures[index];
+    }
+
+    /**
+     * Return all of the results of the batch.  Entries for failed calculations
+     * are zero, so use isSuccessful() to tell them apart from real results.
+     * @return the results array (not a copy)
+     */
+    public long[] getResults() {
+        return this.results;
+    }
+
+    /**
+     * Return the number of calculations in the batch that failed
+     * @return the failure count
+     */
+    public int getFailureCount() {
+        return this.failureCount;
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a human readable description of this object
+     */
+    public String toString() {
+        return "BatchResult[size=" + this.results.length + " failures=" + this.failureCount + "]";
+    }
+}
@@ -1,9 +1,20 @@
 package com.artechra.jcacalculator;
 
 /**
- * An enumeration of the types of calculation that our adapter can perform
+ * An enumeration of the types of calculation that our adapter can perform.
+ * ADD and MULTIPLY use long arithmetic, which wraps if the result overflows.
+ * ADD_EXACT and MULTIPLY_EXACT never wrap; a result too big for a long is
+ * delivered as a BigInteger (see ResultsCallback).
  * @author Eoin Woods
  */
 public enum CalculationType {
-    ADD, MULTIPLY;
+    ADD, MULTIPLY, ADD_EXACT, MULTIPLY_EXACT;
+
+    /**
+     * Is this an exact calculation, whose result is never wrapped?
+     * @return true for the exact calculation types
+     */
+    public boolean isExact() {
+        return this == ADD_EXACT || this == MULTIPLY_EXACT;
+    }
 }
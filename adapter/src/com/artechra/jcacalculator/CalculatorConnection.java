@@ -1,12 +1,24 @@
 package com.artechra.jcacalculator;
 
 import javax.resource.ResourceException;
+import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.IntStream;
 
 /**
  * This interface defines the interface between a client of the JCA adapter and
  * the adapter's calculation facilities.  The operation that the methods 
- * perform is defined when the connection is retrieved.
+ * perform is defined when the connection is retrieved.  A connection can
+ * have any number of asynchronous operations outstanding at once and they
+ * may complete in any order.
+ * <p/>
+ * On a connection for one of the exact calculation types, a result too big
+ * for a long is passed to ResultsCallback#onSuccessfulCalculation(BigInteger).
+ * The methods which return a long instead fail with a ResultOverflowException
+ * (the cause of the ResourceException thrown), which carries the full result.
  *
  * @author Eoin Woods
  */
@@ -21,6 +33,16 @@ public interface CalculatorConnection {
      */
     public long performOperationWhileIWait(List<Integer> operands) throws ResourceException;
 
+    /**
+     * Run the connection's operation on the specified list of operands and return
+     * the result synchronously, waiting no longer than the specified time for it.
+     * @param operands the list of integers to process
+     * @param timeoutMsec the longest time to wait for the result in milliseconds
+     * @return the result of running the operation on the operands
+     * @throws ResourceException if the operation fails or doesn't complete in time
+     */
+    public long performOperationWhileIWait(List<Integer> operands, long timeoutMsec) throws ResourceException;
+
     /**
      * Run the connection's operation on the specified list of operands and return
      * the result asynchronously.
@@ -30,6 +52,204 @@ public interface CalculatorConnection {
      */
     public void performOperationAndCallMeBack(List<Integer> operands, ResultsCallback callback) throws ResourceException;
 
+    /**
+     * Run the connection's operation on the specified list of operands and return
+     * a stage that completes with the result.  The stage is completed directly on
+     * the thread that finishes the calculation, so dependent actions that block
+     * should be attached with one of the *Async methods.
+     * @param operands the list of integers to process
+     * @return a stage completed with the result, or exceptionally if the calculation fails
+     * @throws ResourceException if the operation fails to start
+     */
+    public CompletionStage<Long> performOperationAsync(List<Integer> operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on an array of operands and return the result
+     * synchronously.  The operands are processed without being boxed.
+     * @param operands the integers to process
+     * @return the result of running the operation on the operands
+     * @throws ResourceException if the operation fails
+     */
+    public long performOperationWhileIWait(int[] operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on an array of long operands and return the
+     * result synchronously.
+     * @param operands the numbers to process
+     * @return the result of running the operation on the operands
+     * @throws ResourceException if the operation fails
+     */
+    public long performOperationWhileIWait(long[] operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the remaining contents of a buffer and
+     * return the result synchronously.  The buffer's position isn't changed.
+     * @param operands the integers to process
+     * @return the result of running the operation on the operands
+     * @throws ResourceException if the operation fails
+     */
+    public long performOperationWhileIWait(IntBuffer operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on an array of operands and return the result
+     * asynchronously.  The array must not be changed until the result is delivered.
+     * @param operands the integers to process
+     * @param callback the object to call when the result is available
+     * @throws ResourceException if the operation fails to start
+     */
+    public void performOperationAndCallMeBack(int[] operands, ResultsCallback callback) throws ResourceException;
+
+    /**
+     * Run the connection's operation on an array of long operands and return the
+     * result asynchronously.  The array must not be changed until the result is delivered.
+     * @param operands the numbers to process
+     * @param callback the object to call when the result is available
+     * @throws ResourceException if the operation fails to start
+     */
+    public void performOperationAndCallMeBack(long[] operands, ResultsCallback callback) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the remaining contents of a buffer and return
+     * the result asynchronously.  The buffer must not be changed until the result is delivered.
+     * @param operands the integers to process
+     * @param callback the object to call when the result is available
+     * @throws ResourceException if the operation fails to start
+     */
+    public void performOperationAndCallMeBack(IntBuffer operands, ResultsCallback callback) throws ResourceException;
+
+    /**
+     * Run the connection's operation on an array of operands and return a stage
+     * that completes with the result.  The array must not be changed until then.
+     * @param operands the integers to process
+     * @return a stage completed with the result, or exceptionally if the calculation fails
+     * @throws ResourceException if the operation fails to start
+     */
+    public CompletionStage<Long> performOperationAsync(int[] operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on an array of long operands and return a stage
+     * that completes with the result.  The array must not be changed until then.
+     * @param operands the numbers to process
+     * @return a stage completed with the result, or exceptionally if the calculation fails
+     * @throws ResourceException if the operation fails to start
+     */
+    public CompletionStage<Long> performOperationAsync(long[] operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the remaining contents of a buffer and return
+     * a stage that completes with the result.  The buffer must not be changed until then.
+     * @param operands the integers to process
+     * @return a stage completed with the result, or exceptionally if the calculation fails
+     * @throws ResourceException if the operation fails to start
+     */
+    public CompletionStage<Long> performOperationAsync(IntBuffer operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the operands returned by an iterator and
+     * return the result synchronously.  The operands are consumed as they are
+     * calculated, so they never all need to be held in memory.
+     * @param operands an iterator over the integers to process
+     * @return the result of running the operation on the operands
+     * @throws ResourceException if the operation fails
+     */
+    public long performOperationWhileIWait(Iterator<Integer> operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the operands in an IntStream and return the
+     * result synchronously.  The operands are consumed as they are calculated.
+     * @param operands the integers to process
+     * @return the result of running the operation on the operands
+     * @throws ResourceException if the operation fails
+     */
+    public long performOperationWhileIWait(IntStream operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on a stream of binary operands (four byte
+     * big-endian ints) and return the result synchronously.  The stream is read
+     * to its end as the operands are calculated, but isn't closed.
+     * @param operands the stream of integers to process
+     * @return the result of running the operation on the operands
+     * @throws ResourceException if the operation fails
+     */
+    public long performOperationWhileIWait(InputStream operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the operands returned by an iterator and
+     * return the result asynchronously.  The iterator is consumed on the thread
+     * running the calculation.
+     * @param operands an iterator over the integers to process
+     * @param callback the object to call when the result is available
+     * @throws ResourceException if the operation fails to start
+     */
+    public void performOperationAndCallMeBack(Iterator<Integer> operands, ResultsCallback callback) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the operands in an IntStream and return the
+     * result asynchronously.  The stream is consumed on the thread running the calculation.
+     * @param operands the integers to process
+     * @param callback the object to call when the result is available
+     * @throws ResourceException if the operation fails to start
+     */
+    public void performOperationAndCallMeBack(IntStream operands, ResultsCallback callback) throws ResourceException;
+
+    /**
+     * Run the connection's operation on a stream of binary operands (four byte
+     * big-endian ints) and return the result asynchronously.  The stream is read
+     * on the thread running the calculation.
+     * @param operands the stream of integers to process
+     * @param callback the object to call when the result is available
+     * @throws ResourceException if the operation fails to start
+     */
+    public void performOperationAndCallMeBack(InputStream operands, ResultsCallback callback) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the operands returned by an iterator and
+     * return a stage that completes with the result.  The iterator is consumed on
+     * the thread running the calculation.
+     * @param operands an iterator over the integers to process
+     * @return a stage completed with the result, or exceptionally if the calculation fails
+     * @throws ResourceException if the operation fails to start
+     */
+    public CompletionStage<Long> performOperationAsync(Iterator<Integer> operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on the operands in an IntStream and return a
+     * stage that completes with the result.  The stream is consumed on the thread
+     * running the calculation.
+     * @param operands the integers to process
+     * @return a stage completed with the result, or exceptionally if the calculation fails
+     * @throws ResourceException if the operation fails to start
+     */
+    public CompletionStage<Long> performOperationAsync(IntStream operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on a stream of binary operands (four byte
+     * big-endian ints) and return a stage that completes with the result.  The
+     * stream is read on the thread running the calculation.
+     * @param operands the stream of integers to process
+     * @return a stage completed with the result, or exceptionally if the calculation fails
+     * @throws ResourceException if the operation fails to start
+     */
+    public CompletionStage<Long> performOperationAsync(InputStream operands) throws ResourceException;
+
+    /**
+     * Run the connection's operation on each of the specified operand lists as a
+     * single unit of work and return the results synchronously.  Each calculation
+     * in the batch succeeds or fails independently.
+     * @param operandLists the lists of integers to process
+     * @return the result of each calculation, in the same order as the operand lists
+     * @throws ResourceException if the batch as a whole fails or doesn't complete in time
+     */
+    public BatchResult performOperations(List<List<Integer>> operandLists) throws ResourceException;
+
+    /**
+     * Open a session which keeps a running result of the connection's operation,
+     * which operands can then be appended to over time
+     * @return a new, empty, session
+     * @throws ResourceException if the session can't be created
+     */
+    public AccumulatorSession openAccumulator() throws ResourceException;
+
     /**
      * Close this connection and return it to the application server
      * for reuse if possible.  The caller must not use the connection object
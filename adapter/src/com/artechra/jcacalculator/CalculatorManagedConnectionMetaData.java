@@ -8,6 +8,16 @@ import javax.resource.spi.ManagedConnectionMetaData;
  * @author Eoin Woods
  */
 public class CalculatorManagedConnectionMetaData implements ManagedConnectionMetaData {
+    private final int maxConnections;
+
+    /**
+     * Create a metadata object for a managed connection
+     * @param maxConnections the configured connection limit of the connection's
+     *        factory (zero if there is no limit or it is unknown)
+     */
+    public CalculatorManagedConnectionMetaData(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
 
     /**
      * Return the name of the "system" that the adapter connects to
@@ -28,10 +38,10 @@ public class CalculatorManagedConnectionMetaData implements ManagedConnectionMet
     /**
      * Return the maximum number of connections that this adapter can
      * handle
-     * @return 10 (arbitary value)
+     * @return the MaxConnections property of the managed connection factory
      */
     public int getMaxConnections()  {
-        return 10;
+        return this.maxConnections;
     }
 
     /**
@@ -0,0 +1,30 @@
+package com.artechra.jcacalculator;
+
+import java.math.BigInteger;
+
+/**
+ * Thrown, or passed to ResultsCallback#onFailedCalculation(), when the result of
+ * an exact calculation is too big to be returned as a long.  The full result is
+ * carried by the exception, so callers that only deal in longs are never given a
+ * wrapped value but can still recover the real one.
+ *
+ * @author Eoin Woods
+ */
+public class ResultOverflowException extends ArithmeticException {
+    private static final long serialVersionUID = -6832591057324409217L;
+
+    private final BigInteger result;
+
+    public ResultOverflowException(BigInteger result) {
+        super("Calculation result " + result + " is too big for a long");
+        this.result = result;
+    }
+
+    /**
+     * Return the full result of the calculation
+     * @return the result
+     */
+    public BigInteger getResult() {
+        return this.result;
+    }
+}
@@ -1,4 +1,7 @@
 package com.artechra.jcacalculator ;
+
+import java.math.BigInteger;
+
 /**
  * This interface should be implemented by the class(es) used as callbacks
  * called by the CalculatorAdapter to return asynchronous results.
@@ -13,6 +16,17 @@ public interface ResultsCallback {
      */
     void onSuccessfulCalculation(long result);
 
+    /**
+     * Called instead of onSuccessfulCalculation(long) when an exact calculation
+     * (ADD_EXACT or MULTIPLY_EXACT) completes with a result too big for a long.
+     * Unless this is overridden the calculation is reported as failed, with a
+     * ResultOverflowException carrying the result.
+     * @param result the result of the calculation
+     */
+    default void onSuccessfulCalculation(BigInteger result) {
+        onFailedCalculation(new ResultOverflowException(result));
+    }
+
     /**
      * Called when the calculation fails to complete
      * @param failure the exception that caused the calculation to fail
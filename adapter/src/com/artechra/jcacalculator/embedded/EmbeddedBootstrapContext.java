@@ -0,0 +1,37 @@
+package com.artechra.jcacalculator.embedded;
+
+import javax.resource.spi.BootstrapContext;
+import javax.resource.spi.XATerminator;
+import javax.resource.spi.work.WorkManager;
+import java.util.Timer;
+
+/**
+ * A BootstrapContext for starting a resource adapter outside an application
+ * server.  It provides a Work Manager and timers but, as there is no
+ * transaction manager, no XATerminator.
+ *
+ * @author Eoin Woods
+ */
+public class EmbeddedBootstrapContext implements BootstrapContext {
+    private final WorkManager workManager;
+
+    /**
+     * Create a bootstrap context
+     * @param workManager the Work Manager to give to the resource adapter
+     */
+    public EmbeddedBootstrapContext(WorkManager workManager) {
+        this.workManager = workManager;
+    }
+
+    public WorkManager getWorkManager() {
+        return this.workManager;
+    }
+
+    public XATerminator getXATerminator() {
+        return null;
+    }
+
+    public Timer createTimer() {
+        return new Timer(true);
+    }
+}
@@ -0,0 +1,134 @@
+package com.artechra.jcacalculator.embedded;
+
+import com.artechra.jcacalculator.CalculatorConnectionFactory;
+import com.artechra.jcacalculator.impl.CalculatorManagedConnectionFactoryImpl;
+import com.artechra.jcacalculator.impl.CalculatorResourceAdapter;
+
+import javax.resource.ResourceException;
+
+/**
+ * Runs the calculator adapter in a plain JVM, without an application server,
+ * which is useful for load testing and profiling the adapter.  The runtime
+ * provides the adapter with an EmbeddedWorkManager and its connection factory
+ * with a pooling EmbeddedConnectionManager.
+ * <p/>
+ * The adapter and managed connection factory can be configured through their
+ * usual properties before the runtime is started, for example:
+ * <pre>
+ *   EmbeddedCalculatorRuntime runtime = new EmbeddedCalculatorRuntime(8, 0);
+ *   runtime.getManagedConnectionFactory().setMaxConnections(32);
+ *   runtime.start();
+ *   CalculatorConnection conn = runtime.getConnectionFactory().getConnection(CalculationType.ADD);
+ *   ...
+ *   runtime.stop();
+ * </pre>
+ *
+ * @author Eoin Woods
+ */
+public class EmbeddedCalculatorRuntime {
+    private final CalculatorResourceAdapter adapter;
+    private final CalculatorManagedConnectionFactoryImpl managedConnectionFactory;
+    private final int workerThreads;
+    private final int workQueueCapacity;
+    private EmbeddedWorkManager workManager;
+    private EmbeddedConnectionManager connectionManager;
+    private CalculatorConnectionFactory connectionFactory;
+
+    /**
+     * Create a runtime with a worker thread per processor and an unbounded work queue
+     */
+    public EmbeddedCalculatorRuntime() {
+        this(Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    /**
+     * Create a runtime
+     * @param workerThreads the number of threads the Work Manager runs calculations on
+     * @param workQueueCapacity the maximum number of calculations waiting for a
+     *        thread, or 0 for no limit
+     */
+    public EmbeddedCalculatorRuntime(int workerThreads, int workQueueCapacity) {
+        this.adapter = new CalculatorResourceAdapter();
+        this.managedConnectionFactory = new CalculatorManagedConnectionFactoryImpl();
+        this.workerThreads = workerThreads;
+        this.workQueueCapacity = workQueueCapacity;
+    }
+
+    /**
+     * Return the resource adapter, so it can be configured before starting
+     * @return the resource adapter
+     */
+    public CalculatorResourceAdapter getResourceAdapter() {
+        return this.adapter;
+    }
+
+    /**
+     * Return the managed connection factory, so it can be configured before starting
+     * @return the managed connection factory
+     */
+    public CalculatorManagedConnectionFactoryImpl getManagedConnectionFactory() {
+        return this.managedConnectionFactory;
+    }
+
+    /**
+     * Start the resource adapter and create its connection factory
+     * @throws ResourceException if the adapter can't be started
+     * @throws IllegalStateException if the runtime is already started
+     */
+    public synchronized void start() throws ResourceException {
+        if (this.connectionFactory != null) {
+            throw new IllegalStateException("EmbeddedCalculatorRuntime is already started");
+        }
+        this.workManager = new EmbeddedWorkManager(this.workerThreads, this.workQueueCapacity);
+        // associated first so that the adapter logs its start to the factory's log writer
+        this.managedConnectionFactory.setResourceAdapter(this.adapter);
+        this.adapter.start(new EmbeddedBootstrapContext(this.workManager));
+        this.connectionManager = new EmbeddedConnectionManager();
+        // only has an effect when the factory allows more than one handle per connection
+        this.connectionManager.setShareConnections(true);
+        this.connectionFactory = (CalculatorConnectionFactory)
+                this.managedConnectionFactory.createConnectionFactory(this.connectionManager);
+    }
+
+    /**
+     * Return the connection factory that clients get connections from
+     * @return the connection factory
+     * @throws IllegalStateException if the runtime isn't started
+     */
+    public synchronized CalculatorConnectionFactory getConnectionFactory() {
+        if (this.connectionFactory == null) {
+            throw new IllegalStateException("EmbeddedCalculatorRuntime is not started");
+        }
+        return this.connectionFactory;
+    }
+
+    /**
+     * Return the Work Manager that runs the adapter's calculations
+     * @return the Work Manager, or null if the runtime isn't started
+     */
+    public synchronized EmbeddedWorkManager getWorkManager() {
+        return this.workManager;
+    }
+
+    /**
+     * Return the Connection Manager that pools the adapter's connections
+     * @return the Connection Manager, or null if the runtime isn't started
+     */
+    public synchronized EmbeddedConnectionManager getConnectionManager() {
+        return this.connectionManager;
+    }
+
+    /**
+     * Stop the resource adapter, destroy its connections and stop the Work
+     * Manager's threads.  Does nothing if the runtime isn't started.
+     */
+    public synchronized void stop() {
+        if (this.connectionFactory == null) {
+            return;
+        }
+        this.adapter.stop();
+        this.workManager.shutdown();
+        this.connectionManager.close();
+        this.connectionFactory = null;
+    }
+}
@@ -0,0 +1,401 @@
+package com.artechra.jcacalculator.embedded;
+
+import javax.resource.ResourceException;
+import javax.resource.spi.ConnectionEvent;
+import javax.resource.spi.ConnectionEventListener;
+import javax.resource.spi.ConnectionManager;
+import javax.resource.spi.ConnectionRequestInfo;
+import javax.resource.spi.DissociatableManagedConnection;
+import javax.resource.spi.LazyAssociatableConnectionManager;
+import javax.resource.spi.ManagedConnection;
+import javax.resource.spi.ManagedConnectionFactory;
+import javax.resource.spi.ResourceAllocationException;
+import javax.resource.spi.ValidatingManagedConnectionFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A pooling ConnectionManager for using a resource adapter outside an
+ * application server.  When a connection is asked for, the free managed
+ * connections are offered to the factory's matchManagedConnections() and a
+ * new managed connection is only created if none of them is suitable.  When
+ * a connection handle is closed its managed connection is cleaned up and
+ * returned to the pool, and a managed connection that reports an error is
+ * destroyed.  If the factory is a ValidatingManagedConnectionFactory, the free
+ * connections it reports as invalid (for example because they have been idle
+ * too long) are destroyed before each match.  There is no transaction or
+ * security support.
+ * <p/>
+ * When connection sharing is turned on, the managed connections that are in
+ * use are offered to matchManagedConnections() as well as the free ones, so a
+ * factory that supports several handles per managed connection can hand out
+ * another handle on one that is already in use.  A shared managed connection
+ * only goes back to the pool once all of its handles have been closed.
+ * <p/>
+ * The manager also supports lazy association.  dissociateConnections() takes
+ * back every in-use managed connection that supports it, leaving its handles
+ * open, and a dissociated handle asks for a managed connection again when it is
+ * next used.  This is done automatically when a connection is needed and the
+ * factory has reached its connection limit, so that handles held open but idle
+ * don't keep others waiting.
+ *
+ * @author Eoin Woods
+ */
+public class EmbeddedConnectionManager
+        implements ConnectionManager, LazyAssociatableConnectionManager, ConnectionEventListener {
+    private static final long serialVersionUID = 5949858328511245403L;
+
+    private final transient Set<ManagedConnection> freeConnections = new HashSet<ManagedConnection>();
+    private final transient Set<ManagedConnection> allConnections = new HashSet<ManagedConnection>();
+    private final transient Map<ManagedConnection, Integer> handleCounts = new HashMap<ManagedConnection, Integer>();
+    // The connections that can be matched when sharing: the free ones and those with
+    // open handles, but not one whose last handle has closed and is being cleaned up
+    private final transient Set<ManagedConnection> shareableConnections = new HashSet<ManagedConnection>();
+    private boolean shareConnections = false;
+    private boolean isOpen = true;
+
+    /**
+     * Set whether managed connections that are already in use can be matched for
+     * new connection requests, so that handles share managed connections
+     * @param share true to offer in-use connections to the factory for matching
+     */
+    public synchronized void setShareConnections(boolean share) {
+        this.shareConnections = share;
+    }
+
+    /**
+     * Return whether in-use managed connections are offered for matching
+     * @return true if connections can be shared
+     */
+    public synchronized boolean getShareConnections() {
+        return this.shareConnections;
+    }
+
+    /**
+     * Implementation of ConnectionManager#allocateConnection(), which gets a
+     * connection handle from a pooled or new managed connection
+     * @param mcf the factory the connection is needed from
+     * @param cri the details of the connection needed
+     * @return a connection handle
+     * @throws ResourceException if no connection can be provided
+     */
+    public Object allocateConnection(ManagedConnectionFactory mcf, ConnectionRequestInfo cri)
+            throws ResourceException {
+        ManagedConnection mc = reserveConnection(mcf, cri);
+        try {
+            return mc.getConnection(null, cri);
+        } catch (ResourceException e) {
+            releaseUnused(mc);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseUnused(mc);
+            throw e;
+        }
+    }
+
+    /**
+     * Implementation of LazyAssociatableConnectionManager#associateConnection(),
+     * called by a dissociated connection handle to get a pooled or new managed
+     * connection to carry on with
+     * @param connection the connection handle
+     * @param mcf the factory the connection came from
+     * @param cri the details of the connection
+     * @throws ResourceException if no managed connection can be associated
+     */
+    public void associateConnection(Object connection, ManagedConnectionFactory mcf, ConnectionRequestInfo cri)
+            throws ResourceException {
+        ManagedConnection mc = reserveConnection(mcf, cri);
+        try {
+            mc.associateConnection(connection);
+        } catch (ResourceException e) {
+            releaseUnused(mc);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseUnused(mc);
+            throw e;
+        }
+    }
+
+    /**
+     * Take back every in-use managed connection that supports dissociation, leaving
+     * its handles open to be associated again when they are next used, and return
+     * them to the pool
+     * @return the number of managed connections returned to the pool
+     */
+    public synchronized int dissociateConnections() {
+        int dissociated = 0;
+        // Only connections with open handles, as one whose last handle has closed is
+        // about to be cleaned up and returned to the pool anyway
+        for (ManagedConnection mc : new ArrayList<ManagedConnection>(this.handleCounts.keySet())) {
+            if (!(mc instanceof DissociatableManagedConnection)) {
+                continue;
+            }
+            try {
+                ((DissociatableManagedConnection) mc).dissociateConnections();
+            } catch (ResourceException e) {
+                // still associated, so leave it in use
+                continue;
+            }
+            this.handleCounts.remove(mc);
+            this.freeConnections.add(mc);
+            dissociated++;
+        }
+        return dissociated;
+    }
+
+    /**
+     * Return the number of connection handles open on a managed connection
+     * @param mc the managed connection
+     * @return the number of handles
+     */
+    public synchronized int getHandleCount(ManagedConnection mc) {
+        Integer count = this.handleCounts.get(mc);
+        return (count == null ? 0 : count);
+    }
+
+    /**
+     * Return the number of managed connections the manager is holding
+     * @return the number of connections, in use or free
+     */
+    public synchronized int getConnectionCount() {
+        return this.allConnections.size();
+    }
+
+    /**
+     * Return the number of managed connections waiting in the pool
+     * @return the number of free connections
+     */
+    public synchronized int getFreeConnectionCount() {
+        return this.freeConnections.size();
+    }
+
+    /**
+     * Destroy all of the managed connections, free or in use, and refuse any
+     * further requests for connections
+     */
+    public void close() {
+        List<ManagedConnection> toDestroy;
+        synchronized (this) {
+            this.isOpen = false;
+            toDestroy = new ArrayList<ManagedConnection>(this.allConnections);
+            this.allConnections.clear();
+            this.freeConnections.clear();
+            this.shareableConnections.clear();
+            this.handleCounts.clear();
+        }
+        for (ManagedConnection mc : toDestroy) {
+            destroy(mc);
+        }
+    }
+
+    /**
+     * Implementation of ConnectionEventListener#connectionClosed(), which
+     * returns the managed connection to the pool
+     * @param event the event identifying the managed connection
+     */
+    public void connectionClosed(ConnectionEvent event) {
+        ManagedConnection mc = (ManagedConnection)event.getSource();
+        if (!handleClosed(mc)) {
+            // other handles are still using it
+            return;
+        }
+        try {
+            mc.cleanup();
+        } catch (ResourceException e) {
+            connectionErrorOccurred(event);
+            return;
+        }
+        synchronized (this) {
+            if (this.allConnections.contains(mc)) {
+                this.freeConnections.add(mc);
+                this.shareableConnections.add(mc);
+                return;
+            }
+        }
+        // closed after the manager was, so nothing else will destroy it
+        destroy(mc);
+    }
+
+    /**
+     * Implementation of ConnectionEventListener#connectionErrorOccurred(),
+     * which removes the managed connection from the pool and destroys it
+     * @param event the event identifying the managed connection
+     */
+    public void connectionErrorOccurred(ConnectionEvent event) {
+        ManagedConnection mc = (ManagedConnection)event.getSource();
+        synchronized (this) {
+            this.freeConnections.remove(mc);
+            this.shareableConnections.remove(mc);
+            this.allConnections.remove(mc);
+            this.handleCounts.remove(mc);
+        }
+        destroy(mc);
+    }
+
+    public void localTransactionStarted(ConnectionEvent event) {
+    }
+
+    public void localTransactionCommitted(ConnectionEvent event) {
+    }
+
+    public void localTransactionRolledback(ConnectionEvent event) {
+    }
+
+    /**
+     * Private helper to find a pooled managed connection for a request, or create
+     * one, and count a handle on it.  If the factory can't create any more, the
+     * in-use connections are taken back from their handles and matched again.
+     * @param mcf the factory the connection is needed from
+     * @param cri the details of the connection needed
+     * @return the managed connection
+     * @throws ResourceException if no managed connection can be provided
+     */
+    private ManagedConnection reserveConnection(ManagedConnectionFactory mcf, ConnectionRequestInfo cri)
+            throws ResourceException {
+        evictInvalidConnections(mcf);
+        ManagedConnection mc = matchConnection(mcf, cri);
+        if (mc != null) {
+            return mc;
+        }
+        try {
+            // created outside the lock as creation may be slow
+            mc = mcf.createManagedConnection(null, cri);
+        } catch (ResourceAllocationException e) {
+            // Locked throughout so that another request can't take the connections
+            // freed here, and retried first as another request may already have
+            // freed some
+            synchronized (this) {
+                mc = matchConnection(mcf, cri);
+                if (mc == null && dissociateConnections() > 0) {
+                    mc = matchConnection(mcf, cri);
+                }
+            }
+            if (mc == null) {
+                throw e;
+            }
+            return mc;
+        }
+        mc.addConnectionEventListener(this);
+        synchronized (this) {
+            this.allConnections.add(mc);
+            this.shareableConnections.add(mc);
+            addHandle(mc);
+        }
+        return mc;
+    }
+
+    /**
+     * Private helper to destroy the free managed connections that the factory
+     * reports as no longer valid, so that they don't sit in the pool unmatchable
+     * @param mcf the factory the connections came from
+     * @throws ResourceException if the factory can't check the connections
+     */
+    private void evictInvalidConnections(ManagedConnectionFactory mcf) throws ResourceException {
+        if (!(mcf instanceof ValidatingManagedConnectionFactory)) {
+            return;
+        }
+        List<ManagedConnection> toDestroy = new ArrayList<ManagedConnection>();
+        synchronized (this) {
+            if (this.freeConnections.isEmpty()) {
+                return;
+            }
+            Set<?> invalid = ((ValidatingManagedConnectionFactory) mcf).getInvalidConnections(this.freeConnections);
+            if (invalid == null || invalid.isEmpty()) {
+                return;
+            }
+            for (Object candidate : invalid) {
+                ManagedConnection mc = (ManagedConnection) candidate;
+                if (this.freeConnections.remove(mc)) {
+                    this.shareableConnections.remove(mc);
+                    this.allConnections.remove(mc);
+                    toDestroy.add(mc);
+                }
+            }
+        }
+        for (ManagedConnection mc : toDestroy) {
+            destroy(mc);
+        }
+    }
+
+    /**
+     * Private helper to match a request against the pooled managed connections,
+     * counting a handle on the one chosen
+     * @param mcf the factory the connection is needed from
+     * @param cri the details of the connection needed
+     * @return the managed connection, or null if none of them is suitable
+     * @throws ResourceException if the factory can't match connections
+     */
+    private synchronized ManagedConnection matchConnection(ManagedConnectionFactory mcf, ConnectionRequestInfo cri)
+            throws ResourceException {
+        if (!this.isOpen) {
+            throw new IllegalStateException("EmbeddedConnectionManager has been closed");
+        }
+        ManagedConnection mc = mcf.matchManagedConnections(
+                this.shareConnections ? this.shareableConnections : this.freeConnections, null, cri);
+        if (mc != null) {
+            this.freeConnections.remove(mc);
+            addHandle(mc);
+        }
+        return mc;
+    }
+
+    /**
+     * Private helper to count a new handle on a managed connection; called
+     * with the manager locked
+     * @param mc the managed connection
+     */
+    private void addHandle(ManagedConnection mc) {
+        Integer count = this.handleCounts.get(mc);
+        this.handleCounts.put(mc, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Private helper to count a handle out of a managed connection
+     * @param mc the managed connection
+     * @return true if that was its last handle, so that it is no longer in use
+     */
+    private synchronized boolean handleClosed(ManagedConnection mc) {
+        Integer count = this.handleCounts.get(mc);
+        if (count == null) {
+            // its handles were dissociated, so it has already gone back to the pool
+            return false;
+        }
+        if (count <= 1) {
+            this.handleCounts.remove(mc);
+            this.shareableConnections.remove(mc);
+            return true;
+        }
+        this.handleCounts.put(mc, count - 1);
+        return false;
+    }
+
+    /**
+     * Private helper to give back a managed connection reserved for a handle that
+     * couldn't be created or associated, returning it to the pool if nothing else
+     * is using it
+     * @param mc the managed connection
+     */
+    private synchronized void releaseUnused(ManagedConnection mc) {
+        if (handleClosed(mc) && this.allConnections.contains(mc)) {
+            this.freeConnections.add(mc);
+            this.shareableConnections.add(mc);
+        }
+    }
+
+    /**
+     * Private helper to destroy a managed connection, ignoring failures as
+     * there is nothing more that can be done with it
+     * @param mc the connection to destroy
+     */
+    private void destroy(ManagedConnection mc) {
+        try {
+            mc.destroy();
+        } catch (ResourceException e) {
+            // the connection is being discarded anyway
+        }
+    }
+}
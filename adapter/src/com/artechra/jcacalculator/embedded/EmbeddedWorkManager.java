@@ -0,0 +1,322 @@
+package com.artechra.jcacalculator.embedded;
+
+import javax.resource.spi.work.ExecutionContext;
+import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkCompletedException;
+import javax.resource.spi.work.WorkEvent;
+import javax.resource.spi.work.WorkException;
+import javax.resource.spi.work.WorkListener;
+import javax.resource.spi.work.WorkManager;
+import javax.resource.spi.work.WorkRejectedException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lightweight WorkManager for running the adapter outside an application
+ * server.  Work is run on a fixed pool of daemon threads, fed from a queue,
+ * and a WorkListener is sent the same accepted, rejected, started and
+ * completed events that a server's Work Manager would send.
+ * <p/>
+ * The queue can be bounded, in which case work submitted when it is full is
+ * rejected.  A start timeout other than IMMEDIATE or INDEFINITE is honoured
+ * by rejecting work with a START_TIMED_OUT error if it waited longer than
+ * that in the queue.  doWork() runs the work on the caller's thread.
+ * <p/>
+ * Work passed to scheduleWork(), which a resource adapter uses for its own
+ * long-lived background work, is run on a thread of its own rather than one
+ * of the pool's, so that it doesn't take a thread away from the adapter's
+ * other work for as long as the adapter runs.
+ * <p/>
+ * Alternatively the work manager can run each piece of work on its own
+ * virtual thread, on Java runtimes that have them (see
+ * newVirtualThreadWorkManager()), so that calculations which spend most of
+ * their time waiting don't each hold on to an operating system thread.
+ *
+ * @author Eoin Woods
+ */
+public class EmbeddedWorkManager implements WorkManager {
+    private final ExecutorService executor;
+    private final ExecutorService scheduledExecutor; // Runs scheduleWork()'s work
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    /**
+     * Create a work manager with an unbounded queue
+     * @param threads the number of threads to run work on
+     */
+    public EmbeddedWorkManager(int threads) {
+        this(threads, 0);
+    }
+
+    /**
+     * Create a work manager
+     * @param threads the number of threads to run work on
+     * @param queueCapacity the maximum number of work items waiting to start,
+     *        or 0 for no limit
+     */
+    public EmbeddedWorkManager(int threads, int queueCapacity) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("EmbeddedWorkManager needs at least one thread, not " + threads);
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                (queueCapacity > 0 ? new LinkedBlockingQueue<Runnable>(queueCapacity) :
+                        new LinkedBlockingQueue<Runnable>()),
+                new WorkerThreadFactory("EmbeddedWorkManager-"));
+        pool.prestartAllCoreThreads();
+        this.executor = pool;
+        this.scheduledExecutor = Executors.newCachedThreadPool(new WorkerThreadFactory("EmbeddedWorkManager-scheduled-"));
+    }
+
+    /**
+     * Create a work manager that runs work on the threads of an executor,
+     * which the work manager shuts down when it is shut down.  Work passed to
+     * scheduleWork() is run by the same executor.
+     * @param executor the executor to run work with
+     */
+    public EmbeddedWorkManager(ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("EmbeddedWorkManager needs an executor");
+        }
+        this.executor = executor;
+        this.scheduledExecutor = executor;
+    }
+
+    /**
+     * Create a work manager that starts a new virtual thread for each piece of
+     * work.  Virtual threads need Java 21 or later, so they are looked up
+     * reflectively, allowing the adapter to be built and run on older Java
+     * versions.
+     * @return the work manager, or null if this Java runtime has no virtual threads
+     */
+    public static EmbeddedWorkManager newVirtualThreadWorkManager() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new EmbeddedWorkManager((ExecutorService)factory.invoke(null));
+        } catch (Exception e) {
+            // no such method, or virtual threads are a disabled preview feature
+            return null;
+        }
+    }
+
+    public void doWork(Work work) throws WorkException {
+        doWork(work, INDEFINITE, null, null);
+    }
+
+    public void doWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener)
+            throws WorkException {
+        checkRunning(work, listener);
+        notify(listener, WorkEvent.WORK_ACCEPTED, work, null);
+        WorkException failure = new WorkRunner(work, listener, INDEFINITE, true).execute();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public long startWork(Work work) throws WorkException {
+        return startWork(work, INDEFINITE, null, null);
+    }
+
+    public long startWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener)
+            throws WorkException {
+        submit(this.executor, work, startTimeout, listener);
+        return UNKNOWN;
+    }
+
+    public void scheduleWork(Work work) throws WorkException {
+        scheduleWork(work, INDEFINITE, null, null);
+    }
+
+    public void scheduleWork(Work work, long startTimeout, ExecutionContext ctx, WorkListener listener)
+            throws WorkException {
+        submit(this.scheduledExecutor, work, startTimeout, listener);
+    }
+
+    /**
+     * Return the number of threads running work at the moment, not counting
+     * the work passed to scheduleWork() if it has threads of its own
+     * @return the number of busy threads
+     */
+    public int getActiveCount() {
+        return this.activeCount.get();
+    }
+
+    /**
+     * Return the number of work items waiting for a thread
+     * @return the queue length, always 0 if each item gets its own thread
+     */
+    public int getQueueLength() {
+        if (this.executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor)this.executor).getQueue().size();
+        }
+        return 0;
+    }
+
+    /**
+     * Stop accepting work, reject any work that hasn't started yet and let
+     * the threads finish once the work they're running completes
+     */
+    public void shutdown() {
+        // shutdownNow() would interrupt the running work, so the queue is emptied here
+        this.executor.shutdown();
+        this.scheduledExecutor.shutdown();
+        List<Runnable> queued = new ArrayList<Runnable>();
+        if (this.executor instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor)this.executor).getQueue().drainTo(queued);
+        }
+        for (Runnable r : queued) {
+            if (!(r instanceof WorkRunner)) {
+                continue;
+            }
+            WorkRunner runner = (WorkRunner)r;
+            notify(runner.listener, WorkEvent.WORK_REJECTED, runner.work,
+                    new WorkRejectedException("Work manager shut down before work started"));
+        }
+    }
+
+    /**
+     * Private helper to queue work to be run by one of the threads
+     * @param runWith the executor to run the work with
+     * @param work the work to run
+     * @param startTimeout the longest the work can wait to start, in milliseconds
+     * @param listener the listener to send events to, or null
+     * @throws WorkRejectedException if the work can't be queued
+     */
+    private void submit(ExecutorService runWith, Work work, long startTimeout, WorkListener listener)
+            throws WorkException {
+        checkRunning(work, listener);
+        notify(listener, WorkEvent.WORK_ACCEPTED, work, null);
+        try {
+            runWith.execute(new WorkRunner(work, listener, startTimeout, runWith == this.executor));
+        } catch (RejectedExecutionException e) {
+            throw reject(work, listener, new WorkRejectedException("Work manager queue is full"));
+        }
+    }
+
+    /**
+     * Private helper to refuse work once the work manager is shut down
+     * @param work the work being submitted
+     * @param listener the listener to send events to, or null
+     * @throws WorkRejectedException if the work manager is shut down
+     */
+    private void checkRunning(Work work, WorkListener listener) throws WorkException {
+        if (this.executor.isShutdown()) {
+            throw reject(work, listener, new WorkRejectedException("Work manager is shut down"));
+        }
+    }
+
+    /**
+     * Private helper to tell a listener that its work was rejected
+     * @param work the rejected work
+     * @param listener the listener to send events to, or null
+     * @param reason the exception explaining the rejection
+     * @return the reason, for the caller to throw
+     */
+    private WorkRejectedException reject(Work work, WorkListener listener, WorkRejectedException reason) {
+        notify(listener, WorkEvent.WORK_REJECTED, work, reason);
+        return reason;
+    }
+
+    /**
+     * Private helper to send an event to a listener, if there is one
+     * @param listener the listener to send the event to, or null
+     * @param type the WorkEvent type
+     * @param work the work the event is about
+     * @param exception the exception associated with the event, or null
+     */
+    private void notify(WorkListener listener, int type, Work work, WorkException exception) {
+        if (listener == null) {
+            return;
+        }
+        WorkEvent event = new WorkEvent(this, type, work, exception);
+        switch (type) {
+            case WorkEvent.WORK_ACCEPTED:
+                listener.workAccepted(event);
+                break;
+            case WorkEvent.WORK_REJECTED:
+                listener.workRejected(event);
+                break;
+            case WorkEvent.WORK_STARTED:
+                listener.workStarted(event);
+                break;
+            default:
+                listener.workCompleted(event);
+                break;
+        }
+    }
+
+    /**
+     * The task queued for each piece of work, which runs it and sends the
+     * listener the started and completed events around it
+     */
+    private class WorkRunner implements Runnable {
+        final Work work;
+        final WorkListener listener;
+        final long startDeadline;
+        final boolean counted; // whether the work counts towards getActiveCount()
+
+        WorkRunner(Work work, WorkListener listener, long startTimeout, boolean counted) {
+            this.work = work;
+            this.listener = listener;
+            this.counted = counted;
+            this.startDeadline = (startTimeout > IMMEDIATE && startTimeout < INDEFINITE ?
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(startTimeout) : 0);
+        }
+
+        public void run() {
+            execute();
+        }
+
+        /**
+         * Run the work, unless it waited too long to start
+         * @return the exception the work failed with, or null if it succeeded
+         */
+        WorkException execute() {
+            if (this.startDeadline != 0 && System.nanoTime() - this.startDeadline > 0) {
+                return reject(this.work, this.listener,
+                        new WorkRejectedException("Work did not start in time", WorkException.START_TIMED_OUT));
+            }
+            EmbeddedWorkManager.this.notify(this.listener, WorkEvent.WORK_STARTED, this.work, null);
+            WorkException failure = null;
+            if (this.counted) {
+                EmbeddedWorkManager.this.activeCount.incrementAndGet();
+            }
+            try {
+                this.work.run();
+            } catch (RuntimeException e) {
+                failure = new WorkCompletedException(e);
+            } finally {
+                if (this.counted) {
+                    EmbeddedWorkManager.this.activeCount.decrementAndGet();
+                }
+            }
+            EmbeddedWorkManager.this.notify(this.listener, WorkEvent.WORK_COMPLETED, this.work, failure);
+            return failure;
+        }
+    }
+
+    /**
+     * Creates the named daemon threads that run work
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        WorkerThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, this.namePrefix + this.threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.calculator.CancellableCalculator;
+import com.artechra.calculator.Operation;
+import com.artechra.jcacalculator.AccumulatorSession;
+import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.ResultOverflowException;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implementation of an accumulator session.  Each append calculates the result
+ * of just the appended operands on the caller's thread and then merges it into
+ * the running result with a compare-and-set, which is correct because the
+ * calculator's operations are associative.  Readers just read the running result,
+ * so they never block and are never blocked by appenders.
+ * <p/>
+ * Sessions for the exact calculation types refuse an append that would take
+ * the running result out of the range of a long, leaving it unchanged.
+ *
+ * @author Eoin Woods
+ */
+class AccumulatorSessionImpl implements AccumulatorSession {
+    private final CalculationType calcType;
+    private final Operation op;
+    private final AtomicLong total;
+    private final AtomicLong operandCount;
+    private volatile boolean isOpen;
+
+    /**
+     * Create a new, empty, session
+     * @param type the calculation type that the session performs
+     */
+    public AccumulatorSessionImpl(CalculationType type) {
+        this.calcType = type;
+        this.op = CalculationWorkItem.calculationTypeToOperation(type);
+        this.total = new AtomicLong(this.op == Operation.ADDITION ? 0 : 1);
+        this.operandCount = new AtomicLong();
+        this.isOpen = true;
+    }
+
+    public void append(List<Integer> operands) throws IllegalStateException {
+        appendOperands(Operands.of(operands));
+    }
+
+    public void append(int[] operands) throws IllegalStateException {
+        appendOperands(Operands.of(operands));
+    }
+
+    public void append(long[] operands) throws IllegalStateException {
+        appendOperands(Operands.of(operands));
+    }
+
+    public long current() throws IllegalStateException {
+        checkOpen();
+        return this.total.get();
+    }
+
+    public long getOperandCount() {
+        return this.operandCount.get();
+    }
+
+    public void close() {
+        this.isOpen = false;
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a human readable representation of the object
+     */
+    public String toString() {
+        return "AccumulatorSession[id=" + this.hashCode() + " calcType=" + this.calcType +
+                " operands=" + this.operandCount.get() + " open=" + this.isOpen + "]";
+    }
+
+    /**
+     * Private helper to calculate the result of the appended operands and merge
+     * it into the running result
+     * @param operands the operands to append
+     * @throws IllegalStateException if the session is closed
+     * @throws ResultOverflowException if the session is exact and the result would overflow
+     */
+    private void appendOperands(Operands operands) throws IllegalStateException, ResultOverflowException {
+        checkOpen();
+        int count = operands.size();
+        if (count == 0) {
+            return;
+        }
+        CancellableCalculator calculator = new CancellableCalculator();
+        boolean exact = this.calcType.isExact();
+        calculator.setExact(exact);
+        long partial = operands.calculateWith(calculator, this.op);
+        if (calculator.getOverflowResult() != null) {
+            throw new ResultOverflowException(calculator.getOverflowResult());
+        }
+        long current;
+        long updated;
+        do {
+            current = this.total.get();
+            updated = (this.op == Operation.ADDITION ? current + partial : current * partial);
+            if (exact && overflowed(current, partial, updated)) {
+                BigInteger big = BigInteger.valueOf(current);
+                throw new ResultOverflowException(this.op == Operation.ADDITION ?
+                        big.add(BigInteger.valueOf(partial)) : big.multiply(BigInteger.valueOf(partial)));
+            }
+        } while (!this.total.compareAndSet(current, updated));
+        this.operandCount.addAndGet(count);
+    }
+
+    /**
+     * Private helper to check whether merging a partial result into the running
+     * result overflowed a long
+     * @param current the running result
+     * @param partial the partial result
+     * @param updated the merged result, calculated with long arithmetic
+     * @return true if the merged result is wrong because it overflowed
+     */
+    private boolean overflowed(long current, long partial, long updated) {
+        if (this.op == Operation.ADDITION) {
+            return ((current ^ updated) & (partial ^ updated)) < 0;
+        }
+        return (partial != 0 && updated / partial != current) || (current == Long.MIN_VALUE && partial == -1);
+    }
+
+    /**
+     * Private helper to check that the session is usable
+     * @throws IllegalStateException if the session is closed
+     */
+    private void checkOpen() throws IllegalStateException {
+        if (!this.isOpen) {
+            throw new IllegalStateException("Cannot use a closed accumulator session");
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package com.artechra.jcacalculator.impl;
+
+import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkException;
+import javax.resource.spi.work.WorkManager;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The adapter's log.  Messages have a level and are only formatted if that
+ * level is enabled, so a disabled message costs a single comparison.  Messages
+ * are parameterised with "{}" placeholders, and there are overloads for up to
+ * three parameters so that logging doesn't allocate an array of arguments.
+ * <p/>
+ * Enabled messages are formatted on the caller's thread, so that they describe
+ * their arguments as they were when logged, and then queued for a long-lived
+ * piece of work, run by the adapter's Work Manager, to write to the log writer.  Callers never wait for the writer; if the
+ * queue is full the message is dropped and counted, and the number of dropped
+ * messages is written to the log once there is space again.
+ * <p/>
+ * Output goes to the PrintWriter that the container passes to the managed
+ * connection factory's setLogWriter(), or to standard output if there isn't one.
+ *
+ * @author Eoin Woods
+ */
+class AdapterLog {
+
+    /**
+     * The log levels, from most to least severe
+     */
+    enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private volatile Level level = Level.INFO;
+    private volatile PrintWriter writer;
+    private PrintWriter standardOutput;
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private Appender appender;
+    private volatile boolean running;
+
+    /**
+     * Set the most detailed level of message that is logged
+     * @param level the level
+     */
+    public void setLevel(Level level) {
+        this.level = (level == null ? Level.INFO : level);
+    }
+
+    /**
+     * Return the most detailed level of message that is logged
+     * @return the level
+     */
+    public Level getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Set where messages are written
+     * @param writer the writer to use, or null to write to standard output
+     */
+    public void setWriter(PrintWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Return whether messages of a level are being logged
+     * @param level the level to check
+     * @return true if the level is enabled
+     */
+    public boolean isEnabled(Level level) {
+        return level.ordinal() <= this.level.ordinal();
+    }
+
+    /**
+     * Start the work that writes messages in the background, which runs until the
+     * log is stopped.  Until it is started, and once it has been stopped (or if the
+     * Work Manager won't run it), messages are written on the caller's thread.
+     * @param workManager the Work Manager to run the writing work with
+     */
+    public void start(WorkManager workManager) {
+        Appender starting;
+        synchronized (this) {
+            if (this.appender != null) {
+                return;
+            }
+            this.running = true;
+            starting = new Appender();
+            this.appender = starting;
+        }
+        try {
+            workManager.scheduleWork(starting);
+        } catch (WorkException e) {
+            synchronized (this) {
+                this.running = false;
+                this.appender = null;
+            }
+            warn("Could not start the log writing work, so messages are written directly: {}", e);
+        }
+    }
+
+    /**
+     * Stop the background work, once it has written all the queued messages.
+     * Messages queued just as the work finished are written here.
+     */
+    public void stop() {
+        Appender stopping;
+        synchronized (this) {
+            if (this.appender == null) {
+                return;
+            }
+            this.running = false;
+            stopping = this.appender;
+            this.appender = null;
+        }
+        // Waited for without the log locked, as the appender locks it to write
+        try {
+            stopping.awaitFinished(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Entry entry;
+        while ((entry = this.queue.poll()) != null) {
+            write(entry);
+        }
+        flush();
+    }
+
+    /**
+     * Return the number of messages dropped because the queue was full
+     * @return the number of dropped messages
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    // The logging methods for each level, with up to three "{}" parameters
+
+    /**
+     * Log a message at ERROR level
+     * @param message the message
+     */
+    public void error(String message) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message, 0, null, null, null);
+        }
+    }
+
+    /**
+     * Log a message with one "{}" parameter at ERROR level
+     * @param message the message
+     * @param arg the value for the placeholder
+     */
+    public void error(String message, Object arg) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message, 1, arg, null, null);
+        }
+    }
+
+    /**
+     * Log a message with two "{}" parameters at ERROR level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     */
+    public void error(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message, 2, arg1, arg2, null);
+        }
+    }
+
+    /**
+     * Log a message with three "{}" parameters at ERROR level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     * @param arg3 the value for the third placeholder
+     */
+    public void error(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message, 3, arg1, arg2, arg3);
+        }
+    }
+
+    /**
+     * Log a message at WARN level
+     * @param message the message
+     */
+    public void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, message, 0, null, null, null);
+        }
+    }
+
+    /**
+     * Log a message with one "{}" parameter at WARN level
+     * @param message the message
+     * @param arg the value for the placeholder
+     */
+    public void warn(String message, Object arg) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, message, 1, arg, null, null);
+        }
+    }
+
+    /**
+     * Log a message with two "{}" parameters at WARN level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     */
+    public void warn(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, message, 2, arg1, arg2, null);
+        }
+    }
+
+    /**
+     * Log a message with three "{}" parameters at WARN level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     * @param arg3 the value for the third placeholder
+     */
+    public void warn(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, message, 3, arg1, arg2, arg3);
+        }
+    }
+
+    /**
+     * Log a message at INFO level
+     * @param message the message
+     */
+    public void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message, 0, null, null, null);
+        }
+    }
+
+    /**
+     * Log a message with one "{}" parameter at INFO level
+     * @param message the message
+     * @param arg the value for the placeholder
+     */
+    public void info(String message, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message, 1, arg, null, null);
+        }
+    }
+
+    /**
+     * Log a message with two "{}" parameters at INFO level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     */
+    public void info(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message, 2, arg1, arg2, null);
+        }
+    }
+
+    /**
+     * Log a message with three "{}" parameters at INFO level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     * @param arg3 the value for the third placeholder
+     */
+    public void info(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message, 3, arg1, arg2, arg3);
+        }
+    }
+
+    /**
+     * Log a message at DEBUG level
+     * @param message the message
+     */
+    public void debug(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message, 0, null, null, null);
+        }
+    }
+
+    /**
+     * Log a message with one "{}" parameter at DEBUG level
+     * @param message the message
+     * @param arg the value for the placeholder
+     */
+    public void debug(String message, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message, 1, arg, null, null);
+        }
+    }
+
+    /**
+     * Log a message with two "{}" parameters at DEBUG level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     */
+    public void debug(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message, 2, arg1, arg2, null);
+        }
+    }
+
+    /**
+     * Log a message with three "{}" parameters at DEBUG level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     * @param arg3 the value for the third placeholder
+     */
+    public void debug(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message, 3, arg1, arg2, arg3);
+        }
+    }
+
+    /**
+     * Log a message at TRACE level
+     * @param message the message
+     */
+    public void trace(String message) {
+        if (isEnabled(Level.TRACE)) {
+            log(Level.TRACE, message, 0, null, null, null);
+        }
+    }
+
+    /**
+     * Log a message with one "{}" parameter at TRACE level
+     * @param message the message
+     * @param arg the value for the placeholder
+     */
+    public void trace(String message, Object arg) {
+        if (isEnabled(Level.TRACE)) {
+            log(Level.TRACE, message, 1, arg, null, null);
+        }
+    }
+
+    /**
+     * Log a message with two "{}" parameters at TRACE level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     */
+    public void trace(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.TRACE)) {
+            log(Level.TRACE, message, 2, arg1, arg2, null);
+        }
+    }
+
+    /**
+     * Log a message with three "{}" parameters at TRACE level
+     * @param message the message
+     * @param arg1 the value for the first placeholder
+     * @param arg2 the value for the second placeholder
+     * @param arg3 the value for the third placeholder
+     */
+    public void trace(String message, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.TRACE)) {
+            log(Level.TRACE, message, 3, arg1, arg2, arg3);
+        }
+    }
+
+    /**
+     * Private helper to format an enabled message and hand it to the appender,
+     * or write it directly if the appender isn't running
+     */
+    private void log(Level level, String message, int argCount, Object arg1, Object arg2, Object arg3) {
+        Entry entry = new Entry(System.currentTimeMillis(), level, Thread.currentThread().getName(),
+                format(message, argCount, arg1, arg2, arg3));
+        if (!this.running) {
+            write(entry);
+        } else if (!this.queue.offer(entry)) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Private helper to replace the "{}" placeholders in a message with its arguments
+     */
+    private static String format(String message, int argCount, Object arg1, Object arg2, Object arg3) {
+        if (argCount == 0) {
+            return message;
+        }
+        StringBuilder formatted = new StringBuilder(message.length() + 32);
+        int from = 0;
+        for (int arg = 0; arg < argCount; arg++) {
+            int at = message.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            formatted.append(message, from, at);
+            formatted.append(arg == 0 ? arg1 : (arg == 1 ? arg2 : arg3));
+            from = at + 2;
+        }
+        formatted.append(message, from, message.length());
+        return formatted.toString();
+    }
+
+    /**
+     * The body of the appender work, which writes queued messages until
+     * stopped and then writes whatever is left
+     */
+    private void drain() {
+        long reportedDropped = 0;
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Entry entry = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    write(entry);
+                }
+                long nowDropped = this.dropped.get();
+                if (nowDropped != reportedDropped) {
+                    write(new Entry(System.currentTimeMillis(), Level.WARN, Thread.currentThread().getName(),
+                            (nowDropped - reportedDropped) + " log messages dropped as the log queue was full"));
+                    reportedDropped = nowDropped;
+                }
+                if (this.queue.isEmpty()) {
+                    flush();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                // a failing writer mustn't stop the appender
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Private helper to write a message to the log writer, flushing it straight
+     * away if the appender isn't running to flush it later
+     */
+    private synchronized void write(Entry entry) {
+        PrintWriter out = currentWriter();
+        out.println(this.timestampFormat.format(new Date(entry.time)) + " " + entry.level +
+                " [" + entry.thread + "] " + entry.message);
+        if (!this.running) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Private helper to flush the log writer
+     */
+    private synchronized void flush() {
+        currentWriter().flush();
+    }
+
+    /**
+     * Private helper to find the writer to use, called with the log locked
+     */
+    private PrintWriter currentWriter() {
+        PrintWriter out = this.writer;
+        if (out == null) {
+            if (this.standardOutput == null) {
+                this.standardOutput = new PrintWriter(System.out);
+            }
+            out = this.standardOutput;
+        }
+        return out;
+    }
+
+    /**
+     * The long-lived work that writes queued messages until the log is stopped
+     */
+    private class Appender implements Work {
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        public void run() {
+            try {
+                drain();
+            } finally {
+                this.finished.countDown();
+            }
+        }
+
+        /**
+         * Called by the Work Manager to ask the work to finish, which it does once
+         * it has written the queued messages
+         */
+        public void release() {
+            running = false;
+        }
+
+        /**
+         * Wait for the work to finish writing messages
+         * @param timeoutMsec the longest time to wait
+         * @throws InterruptedException if the wait is interrupted
+         */
+        void awaitFinished(long timeoutMsec) throws InterruptedException {
+            this.finished.await(timeoutMsec, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A message waiting to be written
+     */
+    private static class Entry {
+        final long time;
+        final Level level;
+        final String thread;
+        final String message;
+
+        Entry(long time, Level level, String thread, String message) {
+            this.time = time;
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.embedded.EmbeddedWorkManager;
+
+import javax.resource.spi.work.WorkManager;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The resource adapter's runtime metrics.  For each type of calculation, the
+ * time each work item spends in each phase of its life is recorded in a
+ * histogram, so that time spent waiting for a Work Manager thread can be told
+ * apart from time spent calculating:
+ * <ul>
+ * <li>accept - from submission to the Work Manager accepting the item</li>
+ * <li>queue - from being accepted to starting to run</li>
+ * <li>service - from starting to run to completing</li>
+ * <li>callback - from completing to the result having been delivered</li>
+ * </ul>
+ * Alongside these are counters of work item outcomes and gauges of how busy
+ * the connection pool and Work Manager are.  All of the recording is lock-free.
+ *
+ * @author Eoin Woods
+ */
+public class AdapterMetrics implements AdapterMetricsMBean {
+
+    /**
+     * The phases of a work item's life that are timed
+     */
+    enum Phase {
+        ACCEPT, QUEUE, SERVICE, CALLBACK;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] REPORTED_QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final Map<CalculationType, LatencyHistogram[]> histograms =
+            new EnumMap<CalculationType, LatencyHistogram[]>(CalculationType.class);
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicLong inline = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicInteger managedConnections = new AtomicInteger();
+    private final AtomicInteger connectionsInUse = new AtomicInteger();
+    private volatile WorkManager workManager;
+    private volatile RequestCoalescer coalescer;
+
+    public AdapterMetrics() {
+        // all of the histograms are created up front so recording never has to
+        for (CalculationType type : CalculationType.values()) {
+            LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+            this.histograms.put(type, phases);
+        }
+    }
+
+    /**
+     * Set the Work Manager whose occupancy is reported
+     * @param workManager the adapter's Work Manager
+     */
+    void setWorkManager(WorkManager workManager) {
+        this.workManager = workManager;
+    }
+
+    /**
+     * Set the request coalescer whose statistics are reported
+     * @param coalescer the adapter's request coalescer
+     */
+    void setRequestCoalescer(RequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Record that a work item has been submitted to the Work Manager
+     */
+    void workSubmitted() {
+        this.submitted.incrementAndGet();
+        this.inFlight.incrementAndGet();
+    }
+
+    /**
+     * Record that the Work Manager refused a work item
+     */
+    void workRejected() {
+        this.rejected.incrementAndGet();
+        this.inFlight.decrementAndGet();
+    }
+
+    /**
+     * Record that a request was refused before submission because the adapter
+     * already had as much work in progress as it is allowed
+     */
+    void workSaturated() {
+        this.saturated.incrementAndGet();
+    }
+
+    /**
+     * Record that a work item has finished and its result has been delivered,
+     * with the times at which it reached each stage of its life.  A time of zero
+     * means the stage wasn't seen, and the phases either side of it aren't recorded.
+     * @param type the type of calculation, or null if it isn't known
+     * @param failed true if the work item completed with an exception
+     * @param cancelled true if the work item was stopped before it finished
+     * @param submittedAt System.nanoTime() when the item was submitted
+     * @param acceptedAt System.nanoTime() when the item was accepted
+     * @param startedAt System.nanoTime() when the item started
+     * @param completedAt System.nanoTime() when the item completed
+     * @param deliveredAt System.nanoTime() when the item's result had been delivered
+     */
+    void workFinished(CalculationType type, boolean failed, boolean cancelled,
+                      long submittedAt, long acceptedAt, long startedAt, long completedAt, long deliveredAt) {
+        this.inFlight.decrementAndGet();
+        if (failed) {
+            this.failed.incrementAndGet();
+        } else {
+            this.completed.incrementAndGet();
+        }
+        if (cancelled) {
+            this.cancelled.incrementAndGet();
+        }
+        if (type == null) {
+            return;
+        }
+        LatencyHistogram[] phases = this.histograms.get(type);
+        recordPhase(phases[Phase.ACCEPT.ordinal()], submittedAt, acceptedAt);
+        recordPhase(phases[Phase.QUEUE.ordinal()], acceptedAt, startedAt);
+        recordPhase(phases[Phase.SERVICE.ordinal()], startedAt, completedAt);
+        recordPhase(phases[Phase.CALLBACK.ordinal()], completedAt, deliveredAt);
+    }
+
+    /**
+     * Record that a small calculation was run directly on the calling thread rather
+     * than by the Work Manager, so only has service and delivery times
+     * @param type the type of calculation
+     * @param failed true if the calculation failed
+     * @param startedAt when the calculation started
+     * @param completedAt when the calculation finished
+     * @param deliveredAt when its result had been delivered
+     */
+    void workRanInline(CalculationType type, boolean failed, long startedAt, long completedAt, long deliveredAt) {
+        this.inline.incrementAndGet();
+        if (failed) {
+            this.failed.incrementAndGet();
+        } else {
+            this.completed.incrementAndGet();
+        }
+        LatencyHistogram[] phases = this.histograms.get(type);
+        recordPhase(phases[Phase.SERVICE.ordinal()], startedAt, completedAt);
+        recordPhase(phases[Phase.CALLBACK.ordinal()], completedAt, deliveredAt);
+    }
+
+    /**
+     * Record that a managed connection has been created (opened = true) or destroyed
+     * @param opened true when the connection is created, false when it is destroyed
+     */
+    void managedConnectionChanged(boolean opened) {
+        this.managedConnections.addAndGet(opened ? 1 : -1);
+    }
+
+    /**
+     * Record that a connection handle has been handed out (opened = true) or closed
+     * @param opened true when the handle is handed out, false when it is closed
+     */
+    void connectionHandleChanged(boolean opened) {
+        this.connectionsInUse.addAndGet(opened ? 1 : -1);
+    }
+
+    public long getSubmitted() {
+        return this.submitted.get();
+    }
+
+    public long getCompleted() {
+        return this.completed.get();
+    }
+
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    public long getSaturated() {
+        return this.saturated.get();
+    }
+
+    public long getInline() {
+        return this.inline.get();
+    }
+
+    public long getCoalescedRequests() {
+        RequestCoalescer coalescer = this.coalescer;
+        return (coalescer == null ? 0 : coalescer.getRequestCount());
+    }
+
+    public long getCoalescedBatches() {
+        RequestCoalescer coalescer = this.coalescer;
+        return (coalescer == null ? 0 : coalescer.getBatchCount());
+    }
+
+    public long getCancelled() {
+        return this.cancelled.get();
+    }
+
+    public long getInFlight() {
+        return this.inFlight.get();
+    }
+
+    public int getManagedConnections() {
+        return this.managedConnections.get();
+    }
+
+    public int getConnectionsInUse() {
+        return this.connectionsInUse.get();
+    }
+
+    public int getWorkersActive() {
+        WorkManager wm = this.workManager;
+        return (wm instanceof EmbeddedWorkManager ? ((EmbeddedWorkManager)wm).getActiveCount() : -1);
+    }
+
+    public int getWorkQueueLength() {
+        WorkManager wm = this.workManager;
+        return (wm instanceof EmbeddedWorkManager ? ((EmbeddedWorkManager)wm).getQueueLength() : -1);
+    }
+
+    public long getPhasePercentileNanos(String calculationType, String phase, double percentile) {
+        return getHistogram(CalculationType.valueOf(calculationType),
+                Phase.valueOf(phase.toUpperCase())).getPercentileNanos(percentile);
+    }
+
+    /**
+     * Return the histogram of one phase of one type of calculation
+     * @param type the calculation type
+     * @param phase the phase
+     * @return the histogram
+     */
+    LatencyHistogram getHistogram(CalculationType type, Phase phase) {
+        return this.histograms.get(type)[phase.ordinal()];
+    }
+
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        appendMetric(report, "calculator_work_submitted_total", "counter", getSubmitted());
+        appendMetric(report, "calculator_work_completed_total", "counter", getCompleted());
+        appendMetric(report, "calculator_work_failed_total", "counter", getFailed());
+        appendMetric(report, "calculator_work_rejected_total", "counter", getRejected());
+        appendMetric(report, "calculator_work_saturated_total", "counter", getSaturated());
+        appendMetric(report, "calculator_work_inline_total", "counter", getInline());
+        appendMetric(report, "calculator_work_cancelled_total", "counter", getCancelled());
+        appendMetric(report, "calculator_work_in_flight", "gauge", getInFlight());
+        appendMetric(report, "calculator_managed_connections", "gauge", getManagedConnections());
+        appendMetric(report, "calculator_connections_in_use", "gauge", getConnectionsInUse());
+        appendMetric(report, "calculator_workers_active", "gauge", getWorkersActive());
+        appendMetric(report, "calculator_work_queue_length", "gauge", getWorkQueueLength());
+
+        String name = "calculator_phase_duration_nanoseconds";
+        report.append("# TYPE ").append(name).append(" summary\n");
+        for (CalculationType type : CalculationType.values()) {
+            for (Phase phase : Phase.values()) {
+                appendSummary(report, name, "type=\"" + type + "\",phase=\"" + phase.label() + "\"",
+                        getHistogram(type, phase));
+            }
+        }
+
+        RequestCoalescer coalescer = this.coalescer;
+        if (coalescer != null) {
+            appendMetric(report, "calculator_coalesced_requests_total", "counter", coalescer.getRequestCount());
+            appendMetric(report, "calculator_coalesced_batches_total", "counter", coalescer.getBatchCount());
+            report.append("# TYPE calculator_coalesced_batch_size summary\n");
+            appendSummary(report, "calculator_coalesced_batch_size", null, coalescer.getBatchSizes());
+            report.append("# TYPE calculator_coalesced_wait_nanoseconds summary\n");
+            appendSummary(report, "calculator_coalesced_wait_nanoseconds", null, coalescer.getWaitTimes());
+            report.append("# TYPE calculator_coalesced_latency_nanoseconds summary\n");
+            appendSummary(report, "calculator_coalesced_latency_nanoseconds", null, coalescer.getLatencies());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a one line summary of the metrics
+     */
+    public String toString() {
+        return "AdapterMetrics[submitted=" + getSubmitted() + " completed=" + getCompleted() +
+                " failed=" + getFailed() + " rejected=" + getRejected() +
+                " saturated=" + getSaturated() +
+                " inline=" + getInline() + " cancelled=" + getCancelled() +
+                " inFlight=" + getInFlight() + "]";
+    }
+
+    /**
+     * Private helper to record the duration of a phase, if both of its ends were seen
+     * @param histogram the histogram to record in
+     * @param from System.nanoTime() when the phase started, or 0
+     * @param to System.nanoTime() when the phase ended, or 0
+     */
+    private static void recordPhase(LatencyHistogram histogram, long from, long to) {
+        if (from != 0 && to != 0) {
+            histogram.record(to - from);
+        }
+    }
+
+    /**
+     * Private helper to add the quantiles, count and maximum of a histogram to a report
+     * @param report the report being built
+     * @param name the metric name
+     * @param labels the metric's labels, or null if it has none
+     * @param h the histogram to report
+     */
+    private static void appendSummary(StringBuilder report, String name, String labels, LatencyHistogram h) {
+        String prefix = (labels == null ? "" : labels + ",");
+        String suffix = (labels == null ? " " : "{" + labels + "} ");
+        for (int i = 0; i < REPORTED_PERCENTILES.length; i++) {
+            report.append(name).append('{').append(prefix).append("quantile=\"").append(REPORTED_QUANTILES[i])
+                    .append("\"} ").append(h.getPercentileNanos(REPORTED_PERCENTILES[i])).append('\n');
+        }
+        report.append(name).append("_count").append(suffix).append(h.getCount()).append('\n');
+        report.append(name).append("_max").append(suffix).append(h.getMaxNanos()).append('\n');
+    }
+
+    /**
+     * Private helper to add a single valued metric to a report
+     * @param report the report being built
+     * @param name the metric name
+     * @param type the Prometheus metric type
+     * @param value the metric's value
+     */
+    private static void appendMetric(StringBuilder report, String name, String type, long value) {
+        report.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        report.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,97 @@
+package com.artechra.jcacalculator.impl;
+
+/**
+ * The JMX management interface of the resource adapter's metrics.  Each
+ * started adapter registers its metrics in the platform MBean server under
+ * the name com.artechra.jcacalculator:type=AdapterMetrics,name=...
+ *
+ * @author Eoin Woods
+ */
+public interface AdapterMetricsMBean {
+
+    /**
+     * @return the number of work items submitted to the Work Manager
+     */
+    long getSubmitted();
+
+    /**
+     * @return the number of work items that completed without an exception
+     */
+    long getCompleted();
+
+    /**
+     * @return the number of work items that completed with an exception
+     */
+    long getFailed();
+
+    /**
+     * @return the number of work items the Work Manager refused to run
+     */
+    long getRejected();
+
+    /**
+     * @return the number of requests refused because the adapter was saturated
+     */
+    long getSaturated();
+
+    /**
+     * @return the number of small calculations run on the calling thread
+     */
+    long getInline();
+
+    /**
+     * @return the number of requests gathered into coalesced batches
+     */
+    long getCoalescedRequests();
+
+    /**
+     * @return the number of coalesced batches sent to the Work Manager
+     */
+    long getCoalescedBatches();
+
+    /**
+     * @return the number of work items that were stopped before they finished
+     */
+    long getCancelled();
+
+    /**
+     * @return the number of work items submitted whose results haven't yet been delivered
+     */
+    long getInFlight();
+
+    /**
+     * @return the number of managed connections that exist
+     */
+    int getManagedConnections();
+
+    /**
+     * @return the number of connection handles that are open
+     */
+    int getConnectionsInUse();
+
+    /**
+     * @return the number of Work Manager threads running work, or -1 if the
+     *         Work Manager doesn't say
+     */
+    int getWorkersActive();
+
+    /**
+     * @return the number of work items waiting for a Work Manager thread, or -1
+     *         if the Work Manager doesn't say
+     */
+    int getWorkQueueLength();
+
+    /**
+     * Return a percentile of the durations of one phase of one type of calculation
+     * @param calculationType the CalculationType name, e.g. ADD
+     * @param phase the phase name: accept, queue, service or callback
+     * @param percentile the percentile wanted, from 0 to 100
+     * @return the duration in nanoseconds
+     */
+    long getPhasePercentileNanos(String calculationType, String phase, double percentile);
+
+    /**
+     * @return all of the metrics in the Prometheus text exposition format
+     */
+    String getReport();
+}
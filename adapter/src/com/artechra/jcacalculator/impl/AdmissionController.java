@@ -0,0 +1,162 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.jcacalculator.AdapterSaturatedException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the amount of work the adapter has in progress, by number of work
+ * items and by the size of their operands, so that under overload requests are
+ * turned away quickly rather than queueing without limit in the Work Manager.
+ * A request that can't be admitted straight away either fails at once or waits
+ * up to a configured time for earlier work to finish.
+ * <p/>
+ * Admission is lock-free unless a request has to wait.  A single request whose
+ * operands are larger than the byte limit on their own is admitted when no
+ * other operands are in progress, rather than never.
+ *
+ * @author Eoin Woods
+ */
+class AdmissionController {
+    private final int maxItems;
+    private final long maxBytes;
+    private final long waitNanos;
+    private final AtomicInteger items = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Object waitLock = new Object();
+    private volatile int waiters;
+
+    /**
+     * Create an admission controller
+     * @param maxItems the most work items in progress at once, or 0 for no limit
+     * @param maxBytes the most operand bytes in progress at once, or 0 for no limit
+     * @param waitMsec how long a request can wait to be admitted, or 0 not to wait
+     */
+    public AdmissionController(int maxItems, long maxBytes, long waitMsec) {
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMsec);
+    }
+
+    /**
+     * Admit a work item, waiting if necessary and allowed
+     * @param operandBytes the size of the item's operands
+     * @throws AdapterSaturatedException if the item can't be admitted
+     */
+    public void acquire(long operandBytes) throws AdapterSaturatedException {
+        acquire(operandBytes, true);
+    }
+
+    /**
+     * Admit a work item, waiting if necessary and allowed
+     * @param operandBytes the size of the item's operands
+     * @param mayWait false to fail at once rather than wait, for a caller that
+     *        mustn't be held up
+     * @throws AdapterSaturatedException if the item can't be admitted
+     */
+    public void acquire(long operandBytes, boolean mayWait) throws AdapterSaturatedException {
+        if (tryAcquire(operandBytes)) {
+            return;
+        }
+        if (mayWait && this.waitNanos > 0) {
+            long deadline = System.nanoTime() + this.waitNanos;
+            synchronized (this.waitLock) {
+                this.waiters++;
+                try {
+                    while (true) {
+                        if (tryAcquire(operandBytes)) {
+                            return;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this.waitLock, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    this.waiters--;
+                }
+            }
+        }
+        throw new AdapterSaturatedException("Calculator adapter is saturated (" + this.items.get() +
+                " work items and " + this.bytes.get() + " operand bytes in progress)");
+    }
+
+    /**
+     * Record that an admitted work item has finished
+     * @param operandBytes the size of the item's operands, as given to acquire()
+     */
+    public void release(long operandBytes) {
+        this.items.decrementAndGet();
+        this.bytes.addAndGet(-operandBytes);
+        // waiters is read after the counts are updated, and incremented by a waiter before
+        // it checks them, so one side or the other always sees the change
+        if (this.waiters > 0) {
+            synchronized (this.waitLock) {
+                this.waitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Return the number of work items in progress
+     * @return the item count
+     */
+    public int getItemsInProgress() {
+        return this.items.get();
+    }
+
+    /**
+     * Return the size of the operands of the work items in progress
+     * @return the operand bytes
+     */
+    public long getBytesInProgress() {
+        return this.bytes.get();
+    }
+
+    /**
+     * Private helper to admit an item if there is room for it
+     * @param operandBytes the size of the item's operands
+     * @return true if the item was admitted
+     */
+    private boolean tryAcquire(long operandBytes) {
+        if (this.maxItems > 0) {
+            int current;
+            do {
+                current = this.items.get();
+                if (current >= this.maxItems) {
+                    return false;
+                }
+            } while (!this.items.compareAndSet(current, current + 1));
+        } else {
+            this.items.incrementAndGet();
+        }
+        if (this.maxBytes > 0) {
+            long current;
+            do {
+                current = this.bytes.get();
+                if (current > 0 && current + operandBytes > this.maxBytes) {
+                    this.items.decrementAndGet();
+                    return false;
+                }
+            } while (!this.bytes.compareAndSet(current, current + operandBytes));
+        } else {
+            this.bytes.addAndGet(operandBytes);
+        }
+        return true;
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a human readable representation of the object
+     */
+    public String toString() {
+        return "AdmissionController[items=" + this.items.get() + "/" + this.maxItems +
+                " bytes=" + this.bytes.get() + "/" + this.maxBytes +
+                " waitMsec=" + TimeUnit.NANOSECONDS.toMillis(this.waitNanos) + "]";
+    }
+}
@@ -0,0 +1,162 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.calculator.CancellableCalculator;
+import com.artechra.calculator.Operation;
+import com.artechra.jcacalculator.BatchResult;
+import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.ResultOverflowException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Work item that runs a whole batch of calculations, one per operand list, so
+ * that a large number of small calculations only pay the cost of one trip through
+ * the Work Manager.  Each calculation succeeds or fails on its own and the outcome
+ * of each is recorded in a BatchResult.
+ *
+ * @author Eoin Woods
+ */
+class BatchCalculationWorkItem extends CancellableCalculator implements CalculatorWork {
+    private long requestId;
+    private CalculationType calcType;
+    private List<List<Integer>> operandLists;
+    private BatchResult result;
+    private CompletableFuture<BatchResult> completion;
+    private volatile boolean released;
+    private long startDeadline;
+    private volatile boolean missedStartDeadline;
+
+    /**
+     * Create an initialised Batch Calculation Work Item, ready to run
+     * @param requestId the id of the request the item is for
+     * @param type the operator type to use
+     * @param operandLists the operand lists to run the operator on
+     * @param completion the future to complete with the results once the item has completed
+     */
+    public BatchCalculationWorkItem(long requestId, CalculationType type, List<List<Integer>> operandLists,
+                                    CompletableFuture<BatchResult> completion) {
+        super();
+        this.requestId = requestId;
+        this.calcType = type;
+        this.operandLists = operandLists;
+        this.result = new BatchResult(operandLists.size());
+        this.completion = completion;
+        this.released = false;
+    }
+
+    /**
+     * Implementation of Work#run(), which is called by the Work Manager to
+     * run this piece of processing.  If the item is released part way through,
+     * the calculations which haven't been run are recorded as failures.
+     */
+    public void run() {
+        if (this.startDeadline != 0 && System.nanoTime() - this.startDeadline > 0) {
+            this.missedStartDeadline = true;
+            return;
+        }
+        Operation op = CalculationWorkItem.calculationTypeToOperation(this.calcType);
+        setExact(this.calcType.isExact());
+        int index = 0;
+        for (List<Integer> operands : this.operandLists) {
+            if (this.released) {
+                this.result.setFailure(index, new IllegalStateException("Batch cancelled before calculation ran"));
+            } else if (operands == null || operands.isEmpty()) {
+                this.result.setFailure(index, new IllegalArgumentException("Operand list cannot be null or empty"));
+            } else {
+                try {
+                    Long value = this.calculate(op, operands);
+                    if (value == null || this.released) {
+                        this.result.setFailure(index, new IllegalStateException("Batch cancelled during calculation"));
+                    } else if (getOverflowResult() != null) {
+                        // batch results are longs, so a result too big for one is a failure
+                        this.result.setFailure(index, new ResultOverflowException(getOverflowResult()));
+                    } else {
+                        this.result.setResult(index, value);
+                    }
+                } catch (RuntimeException e) {
+                    this.result.setFailure(index, e);
+                }
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Implementation of Work#release() which is called by the Work Manager to
+     * indicate that the processing should complete as soon as possible.
+     */
+    public void release() {
+        this.released = true;
+        this.cancelCalculation();
+    }
+
+    /**
+     * Implementation of CalculatorWork#deliverResult(), completes the batch's future
+     * with the results (or with the failure if the whole item failed)
+     * @param workItemException the exception the work item failed with or null
+     */
+    public void deliverResult(Exception workItemException) {
+        if (workItemException == null && this.missedStartDeadline) {
+            workItemException = CalculationWorkItem.startDeadlineMissed();
+        }
+        if (workItemException != null) {
+            this.completion.completeExceptionally(workItemException);
+        } else {
+            this.completion.complete(this.result);
+        }
+    }
+
+    /**
+     * Implementation of CalculatorWork#getRequestId()
+     * @return the id of the request this item is for
+     */
+    public long getRequestId() {
+        return this.requestId;
+    }
+
+    /**
+     * Implementation of CalculatorWork#getOperandBytes()
+     * @return the approximate size of the operands of all of the batch's calculations
+     */
+    public long getOperandBytes() {
+        long bytes = 0;
+        for (List<Integer> operands : this.operandLists) {
+            bytes += (operands == null ? 0 : operands.size() * 4L);
+        }
+        return bytes;
+    }
+
+    /**
+     * Implementation of CalculatorWork#setStartDeadline()
+     * @param deadline the System.nanoTime() the item must start by, or 0 for none
+     */
+    public void setStartDeadline(long deadline) {
+        this.startDeadline = deadline;
+    }
+
+    /**
+     * Implementation of CalculatorWork#missedStartDeadline()
+     * @return true if the item started too late to run
+     */
+    public boolean missedStartDeadline() {
+        return this.missedStartDeadline;
+    }
+
+    /**
+     * Implementation of CalculatorWork#getCalculationType()
+     * @return the type of calculation this item performs
+     */
+    public CalculationType getCalculationType() {
+        return this.calcType;
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a human readable representation of the object
+     */
+    public String toString() {
+        return "BatchCalculationWorkItem[id=" + this.hashCode() + " requestId=" + this.requestId + " calcType=" + this.calcType +
+                " BatchSize=" + this.operandLists.size() + "]";
+    }
+}
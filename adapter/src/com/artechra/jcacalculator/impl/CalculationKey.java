@@ -0,0 +1,85 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.jcacalculator.CalculationType;
+
+import java.util.Arrays;
+
+/**
+ * A key which identifies a calculation by its type and operands, so that
+ * identical calculations can be recognised (by the result cache and when
+ * de-duplicating calculations which are in progress).  The operands are
+ * copied into the key so that later changes to the caller's array or list
+ * can't change it, and are held as longs so that the same values supplied
+ * in different forms give equal keys.
+ *
+ * @author Eoin Woods
+ */
+final class CalculationKey {
+    private final CalculationType type;
+    private final long[] operands;
+    private final int hash;
+
+    /**
+     * Create a key for a calculation
+     * @param type the calculation type
+     * @param operands the operands, which the key takes ownership of
+     */
+    CalculationKey(CalculationType type, long[] operands) {
+        this.type = type;
+        this.operands = operands;
+        this.hash = 31 * type.hashCode() + Arrays.hashCode(operands);
+    }
+
+    /**
+     * Create the key for a calculation, if it can have one
+     * @param type the calculation type
+     * @param operands the operands
+     * @param maxOperands the largest number of operands worth copying into a key
+     * @return the key, or null if the operands are streamed or there are too many of them
+     */
+    static CalculationKey of(CalculationType type, Operands operands, long maxOperands) {
+        int size = operands.size();
+        if (size == Operands.UNKNOWN_SIZE || size > maxOperands) {
+            return null;
+        }
+        long[] values = operands.toLongArray();
+        return (values == null ? null : new CalculationKey(type, values));
+    }
+
+    /**
+     * Return the weight of the key, which is the number of operands it holds
+     * @return the weight
+     */
+    int weight() {
+        return this.operands.length;
+    }
+
+    /**
+     * Override of java.lang.Object#equals()
+     * @param o the object to compare this one to
+     * @return true if they're equal, false otherwise
+     */
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CalculationKey that = (CalculationKey) o;
+        return this.hash == that.hash && this.type == that.type && Arrays.equals(this.operands, that.operands);
+    }
+
+    /**
+     * Override of java.lang.Object#hashCode()
+     * @return a hash value for this object
+     */
+    public int hashCode() {
+        return this.hash;
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a human readable description of this object
+     */
+    public String toString() {
+        return "CalculationKey[type=" + this.type + " operands=" + this.operands.length + "]";
+    }
+}
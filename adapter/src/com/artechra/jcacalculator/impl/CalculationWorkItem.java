@@ -3,9 +3,16 @@ package com.artechra.jcacalculator.impl;
 import com.artechra.calculator.CancellableCalculator;
 import com.artechra.calculator.Operation;
 import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.ResultsCallback;
 
-import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkCompletedException;
+import javax.resource.spi.work.WorkException;
+import javax.resource.spi.work.WorkRejectedException;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+
 
 /**
  * This class acts as an adapter (of sorts) between the Cancellable Calculator
@@ -19,21 +26,87 @@ import java.util.List;
  *
  * @author Eoin Woods
  */
-class CalculationWorkItem extends CancellableCalculator implements Work {
+class CalculationWorkItem extends CancellableCalculator implements CalculatorWork {
+    private long requestId;
     private CalculationType calcType;
-    List<Integer> operands;
+    Operands operands;
     long result;
+    // The full result of an exact calculation that overflowed a long, otherwise null
+    BigInteger bigResult;
+    private ResultsCallback callback;
+    private ResultCache cache;
+    private CalculationKey cacheKey;
+    private Map<CalculationKey, CalculationWorkItem> inFlight;
+    private CalculationKey inFlightKey;
+    private List<ResultsCallback> followers;
+    private boolean delivered;
+    private boolean cancelled;
+    private AdapterLog log;
+    private long startDeadline;
+    private volatile boolean missedStartDeadline;
+    private InlineDispatchPolicy dispatchPolicy;
+    private WorkCompletionCallback owner;
 
     /**
      * Create an initialised Calculation Work Item, ready to run
+     * @param requestId the id of the request the item is for
      * @param type the operator type to use
      * @param operands the list of operands to run the operator on
+     * @param callback the object to pass the result to once the item has completed
      */
-    public CalculationWorkItem(CalculationType type, List<Integer> operands) {
+    public CalculationWorkItem(long requestId, CalculationType type, Operands operands, ResultsCallback callback) {
         super() ;
+        reinitialise(requestId, type, operands, callback);
+    }
+
+    /**
+     * Prepare an item which has delivered its result to run another calculation,
+     * just as if it had been newly created, so that items can be reused rather than
+     * created for each request
+     * @param requestId the id of the request the item is for
+     * @param type the operator type to use
+     * @param operands the list of operands to run the operator on
+     * @param callback the object to pass the result to once the item has completed
+     */
+    public void reinitialise(long requestId, CalculationType type, Operands operands, ResultsCallback callback) {
+        this.requestId = requestId;
         this.calcType = type;
         this.operands = operands;
         this.result = 0;
+        this.bigResult = null;
+        this.callback = callback;
+        this.cache = null;
+        this.cacheKey = null;
+        this.inFlight = null;
+        this.inFlightKey = null;
+        this.followers = null;
+        this.delivered = false;
+        this.cancelled = false;
+        this.startDeadline = 0;
+        this.missedStartDeadline = false;
+        this.dispatchPolicy = null;
+        this.owner = null;
+    }
+
+    /**
+     * Return whether the item can be reused once its result has been delivered,
+     * which it can't if other requesters could have found it while it was running
+     * @return true if nothing else can still hold a reference to the item
+     */
+    public boolean isReusable() {
+        return this.inFlightKey == null;
+    }
+
+    /**
+     * Drop the item's references to its request once it has been delivered, so that
+     * a spare item doesn't keep its last caller's operands and callback alive
+     */
+    public void clear() {
+        this.operands = null;
+        this.bigResult = null;
+        this.callback = null;
+        this.cache = null;
+        this.cacheKey = null;
     }
 
     /**
@@ -41,19 +114,19 @@ class CalculationWorkItem extends CancellableCalculator implements Work {
      * run this piece of processing.
      */
     public void run() {
-        System.out.println("CalculationWorkItem Item " + this.hashCode() + " started");
-
-        Long result = this.calculate(calculationTypeToOperation(this.calcType), this.operands);
-
-        if (this.wasCancelled()) {
-            System.out.println("CalculationWorkItem Item " + this.hashCode() +
-                    " exiting due to cancelation");
-            this.result = 0;
-        } else {
-            assert result != null;
-            this.result = result;
-            System.out.println("CalculationWorkItem Item " + this.hashCode() +
-                    " completed (result=" + this.result + ")");
+        if (this.startDeadline != 0 && System.nanoTime() - this.startDeadline > 0) {
+            this.missedStartDeadline = true;
+            return;
+        }
+        long startedAt = (this.dispatchPolicy != null ? System.nanoTime() : 0);
+        setExact(this.calcType.isExact());
+        long result = this.operands.calculateWith(this, calculationTypeToOperation(this.calcType));
+        // Recorded here as the next calculation clears the cancellation flag
+        this.cancelled = this.wasCancelled();
+        this.result = (this.cancelled ? 0 : result);
+        this.bigResult = (this.cancelled ? null : getOverflowResult());
+        if (this.dispatchPolicy != null) {
+            this.dispatchPolicy.recordServiceTime(this.operands.size(), System.nanoTime() - startedAt);
         }
     }
 
@@ -62,10 +135,176 @@ class CalculationWorkItem extends CancellableCalculator implements Work {
      * indicate that the processing should complete as soon as possible.
      */
     public void release() {
-        System.out.println("Work Item " + this.hashCode() + " cancelled");
         this.cancelCalculation();
     }
 
+    /**
+     * Record that the item was released while it ran, for a release that its
+     * calculation missed because it arrived just before the calculation started.
+     * The item is then reported as cancelled rather than delivering its result.
+     */
+    public void markReleased() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Implementation of CalculatorWork#deliverResult(), passes the result (or the
+     * failure) on to the callback supplied when the item was created.  An item that
+     * was released while it was calculating has no result, so it is reported as
+     * failed rather than passing on the partial value.  Requesters that attached to
+     * the item may belong to other connections, so they are told that the shared
+     * calculation was released rather than being given its failure.
+     * @param workItemException the exception the work item failed with or null
+     */
+    public void deliverResult(Exception workItemException) {
+        if (workItemException == null && this.missedStartDeadline) {
+            workItemException = startDeadlineMissed();
+        }
+        if (workItemException == null && this.cancelled) {
+            workItemException = new WorkCompletedException("Work item was released before its calculation completed");
+        }
+        List<ResultsCallback> attached = detachFollowers();
+        Exception followerException = workItemException;
+        if (this.cancelled && attached != null) {
+            followerException = new WorkCompletedException(
+                    "The identical calculation this request was waiting on was released before it completed");
+        }
+        if (workItemException == null && this.cache != null && this.bigResult == null) {
+            // Only results that fit in a long are cached
+            this.cache.put(this.cacheKey, this.result);
+        }
+        // The followers have been detached, so a failing callback mustn't stop them being
+        // told; its exception is passed on once they have been
+        RuntimeException callbackFailure = null;
+        try {
+            if (workItemException != null) {
+                this.callback.onFailedCalculation(workItemException);
+            } else {
+                deliverSuccess(this.callback);
+            }
+        } catch (RuntimeException e) {
+            callbackFailure = e;
+        }
+        if (attached != null) {
+            for (ResultsCallback follower : attached) {
+                try {
+                    if (followerException != null) {
+                        follower.onFailedCalculation(followerException);
+                    } else {
+                        deliverSuccess(follower);
+                    }
+                } catch (RuntimeException e) {
+                    if (this.log != null) {
+                        this.log.warn("Work item {} callback {} failed: {}", this, follower, e);
+                    }
+                }
+            }
+        }
+        if (callbackFailure != null) {
+            throw callbackFailure;
+        }
+    }
+
+    /**
+     * Private helper to pass the item's result to a callback, as a BigInteger if it
+     * is too big for a long
+     * @param target the callback to call
+     */
+    private void deliverSuccess(ResultsCallback target) {
+        if (this.bigResult != null) {
+            target.onSuccessfulCalculation(this.bigResult);
+        } else {
+            target.onSuccessfulCalculation(this.result);
+        }
+    }
+
+    /**
+     * Record this item as the running instance of its calculation, so that identical
+     * requests made while it runs can attach to it rather than running again.  The
+     * item removes itself from the registry when its result is delivered.
+     * @param registry the adapter's registry of running calculations
+     * @param key the key of this item's calculation
+     */
+    public void setInFlightRegistration(Map<CalculationKey, CalculationWorkItem> registry, CalculationKey key) {
+        this.inFlight = registry;
+        this.inFlightKey = key;
+    }
+
+    /**
+     * Attach another requester to this item, so that it is given the same result
+     * (or failure) as the requester that started it
+     * @param follower the callback to call with the result
+     * @return true if the requester was attached, false if the result has already
+     *         been delivered and so the requester must run the calculation itself
+     */
+    public synchronized boolean attach(ResultsCallback follower) {
+        if (this.delivered) {
+            return false;
+        }
+        if (this.followers == null) {
+            this.followers = new ArrayList<ResultsCallback>();
+        }
+        this.followers.add(follower);
+        return true;
+    }
+
+    /**
+     * Used when the item couldn't be started, to fail any requesters that attached
+     * to it in the meantime (the requester that started it is told by its caller)
+     * @param failure the reason the item couldn't be run
+     */
+    public void abandon(Exception failure) {
+        List<ResultsCallback> attached = detachFollowers();
+        if (attached != null) {
+            for (ResultsCallback follower : attached) {
+                follower.onFailedCalculation(failure);
+            }
+        }
+    }
+
+    /**
+     * Ask the item to add its result to a cache when it completes successfully
+     * @param cache the cache to add the result to
+     * @param key the key to add the result under
+     */
+    public void setResultCache(ResultCache cache, CalculationKey key) {
+        this.cache = cache;
+        this.cacheKey = key;
+    }
+
+    /**
+     * Record the managed connection the item was requested through, for an item
+     * that is run as part of a coalesced batch rather than by the connection itself
+     * @param owner the managed connection
+     */
+    public void setOwner(WorkCompletionCallback owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Return the managed connection the item was requested through, if recorded
+     * @return the managed connection, or null
+     */
+    public WorkCompletionCallback getOwner() {
+        return this.owner;
+    }
+
+    /**
+     * Set the dispatch policy to report the item's service time to
+     * @param policy the adapter's inline dispatch policy
+     */
+    public void setDispatchPolicy(InlineDispatchPolicy policy) {
+        this.dispatchPolicy = policy;
+    }
+
+    /**
+     * Set the log to report problems delivering the item's result to
+     * @param log the adapter's log
+     */
+    public void setLog(AdapterLog log) {
+        this.log = log;
+    }
+
     /**
      * Return the result of the calculation
      * @return the result
@@ -74,30 +313,100 @@ class CalculationWorkItem extends CancellableCalculator implements Work {
         return this.result;
     }
 
+    /**
+     * Implementation of CalculatorWork#getRequestId()
+     * @return the id of the request this item is for
+     */
+    public long getRequestId() {
+        return this.requestId;
+    }
+
+    /**
+     * Implementation of CalculatorWork#getOperandBytes()
+     * @return the approximate size of the item's operands
+     */
+    public long getOperandBytes() {
+        return this.operands.byteSize();
+    }
+
+    /**
+     * Implementation of CalculatorWork#setStartDeadline()
+     * @param deadline the System.nanoTime() the item must start by, or 0 for none
+     */
+    public void setStartDeadline(long deadline) {
+        this.startDeadline = deadline;
+    }
+
+    /**
+     * Implementation of CalculatorWork#missedStartDeadline()
+     * @return true if the item started too late to run
+     */
+    public boolean missedStartDeadline() {
+        return this.missedStartDeadline;
+    }
+
+    /**
+     * Implementation of CalculatorWork#getCalculationType()
+     * @return the type of calculation this item performs
+     */
+    public CalculationType getCalculationType() {
+        return this.calcType;
+    }
+
+    /**
+     * Private helper to stop any more requesters attaching to this item, by
+     * removing it from the in flight registry and marking it delivered
+     * @return the requesters that had attached, or null if there were none
+     */
+    private List<ResultsCallback> detachFollowers() {
+        if (this.inFlight != null) {
+            this.inFlight.remove(this.inFlightKey, this);
+        }
+        synchronized (this) {
+            this.delivered = true;
+            List<ResultsCallback> attached = this.followers;
+            this.followers = null;
+            return attached;
+        }
+    }
+
     /**
      * Override of java.lang.Object#toString()
      * @return a human readable representation of the object
      */
     public String toString() {
-        return "CalculationWorkItem[id=" + this.hashCode() + " calcType=" + this.calcType +
-                " OpListLen=" + this.operands.size() + "]";
+        // A recycled item has no operands until it is given its next request
+        Operands ops = this.operands;
+        return "CalculationWorkItem[id=" + this.hashCode() + " requestId=" + this.requestId + " calcType=" + this.calcType +
+                " OpListLen=" + (ops == null ? "none" : String.valueOf(ops.size())) + "]";
+    }
+
+    /**
+     * A helper to create the exception a work item fails with when it starts
+     * too late to run
+     * @return the exception
+     */
+    static WorkRejectedException startDeadlineMissed() {
+        return new WorkRejectedException("Work item did not start before its deadline", WorkException.START_TIMED_OUT);
     }
 
     /**
-     * A private helper to convert between the Adapter's calculation type constant
+     * A helper to convert between the Adapter's calculation type constant
      * and the constants used by the Calculator
      * @param type Adapter calculation type
      * @return the corresponding Calculator operation type
      * @throws IllegalArgumentException if the type is unknown
      */
-    private Operation calculationTypeToOperation(CalculationType type)
+    static Operation calculationTypeToOperation(CalculationType type)
             throws IllegalArgumentException {
         Operation ret = null;
         switch (type) {
             case ADD:
+            case ADD_EXACT:
                 ret = Operation.ADDITION;
                 break;
             case MULTIPLY:
+            case MULTIPLY_EXACT:
                 ret = Operation.MULTIPLICATION;
                 break;
             default:
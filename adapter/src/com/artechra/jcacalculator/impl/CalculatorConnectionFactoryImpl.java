@@ -6,6 +6,7 @@ import javax.resource.ResourceException;
 import javax.resource.Referenceable;
 import javax.resource.spi.ConnectionManager;
 import javax.resource.spi.ConnectionRequestInfo;
+import javax.resource.spi.LazyAssociatableConnectionManager;
 import javax.naming.Reference;
 import javax.naming.NamingException;
 import java.io.Serializable;
@@ -28,6 +29,10 @@ public class CalculatorConnectionFactoryImpl
         implements CalculatorConnectionFactory, Serializable, Referenceable {
     private static final long serialVersionUID = -2500385499999221634L;
 
+    // The request info for each calculation type, shared by every request for that
+    // type rather than being created for each one (nothing changes them once created)
+    private static final SimpleConnectionRequestInfo[] REQUEST_INFOS = createRequestInfos();
+
     private ConnectionManager connManager;
     private CalculatorManagedConnectionFactoryImpl owner;
     private Reference myReference ;
@@ -54,8 +59,30 @@ public class CalculatorConnectionFactoryImpl
         // This object doesn't do much itself, it just calls the Connection Manager
         // that does the real work, interacting with the Managed Connection Factory to
         // create the underlying connection if needed
-        ConnectionRequestInfo connRequestInfo = new SimpleConnectionRequestInfo(type);
-        return (CalculatorConnection) this.connManager.allocateConnection(this.owner, connRequestInfo);
+        ConnectionRequestInfo connRequestInfo = (type == null ? new SimpleConnectionRequestInfo(null) :
+                REQUEST_INFOS[type.ordinal()]);
+        Object connection = this.connManager.allocateConnection(this.owner, connRequestInfo);
+        // A container that can dissociate the connection from its managed connection
+        // is also the one the connection must ask to associate it again
+        if (connection instanceof CalculatorConnectionImpl &&
+                this.connManager instanceof LazyAssociatableConnectionManager) {
+            ((CalculatorConnectionImpl) connection).setConnectionManager(
+                    (LazyAssociatableConnectionManager) this.connManager);
+        }
+        return (CalculatorConnection) connection;
+    }
+
+    /**
+     * Private helper to create the shared request info for each calculation type
+     * @return the request infos, indexed by calculation type ordinal
+     */
+    private static SimpleConnectionRequestInfo[] createRequestInfos() {
+        CalculationType[] types = CalculationType.values();
+        SimpleConnectionRequestInfo[] infos = new SimpleConnectionRequestInfo[types.length];
+        for (CalculationType type : types) {
+            infos[type.ordinal()] = new SimpleConnectionRequestInfo(type);
+        }
+        return infos;
     }
 
     /**
@@ -1,10 +1,25 @@
 package com.artechra.jcacalculator.impl;
 
+import com.artechra.jcacalculator.AccumulatorSession;
+import com.artechra.jcacalculator.BatchResult;
 import com.artechra.jcacalculator.CalculatorConnection;
 import com.artechra.jcacalculator.ResultsCallback;
+import com.artechra.jcacalculator.SimpleConnectionRequestInfo;
 
 import javax.resource.ResourceException;
+import javax.resource.spi.LazyAssociatableConnectionManager;
+import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
 
 
 /**
@@ -13,87 +28,423 @@ import java.util.List;
  * created and destroyed at will (in contrast to the Managed Connection
  * which is the "heavy weight" object that should be pooled).
  *
- * This particular implementation maintains a 1:1 mapping between
- * managed connections and connections.
+ * A connection is associated with one managed connection at a time, though
+ * several connections can share one managed connection.  The container can
+ * dissociate a connection from its managed connection while the connection
+ * is idle, so that the managed connection goes back to the pool; the
+ * connection then asks the container's connection manager to associate it
+ * with a managed connection again when it is next used.
  *
  * @author Eoin Woods
  */
 class CalculatorConnectionImpl implements CalculatorConnection {
     static final int OPERATION_TIMEOUT_MSEC = 5000;
-    private CalculatorManagedConnectionImpl owner;
-    private boolean isOpen;
+    private static final AtomicReferenceFieldUpdater<CalculatorConnectionImpl, CalculatorManagedConnectionImpl> OWNER =
+            AtomicReferenceFieldUpdater.newUpdater(CalculatorConnectionImpl.class,
+                    CalculatorManagedConnectionImpl.class, "owner");
+
+    private final CalculatorResourceAdapter adapter;
+    private final CalculatorManagedConnectionFactoryImpl factory;
+    private final SimpleConnectionRequestInfo requestInfo;
+    // null while the connection is dissociated from any managed connection
+    private volatile CalculatorManagedConnectionImpl owner;
+    private volatile LazyAssociatableConnectionManager connManager;
+    private volatile boolean isOpen;
 
     public CalculatorConnectionImpl(CalculatorManagedConnectionImpl owner) {
-        System.out.println("New CalculatorConnection(owner=" + owner + ")");
+        this.adapter = owner.owningAdapter;
+        this.factory = owner.getFactory();
+        this.requestInfo = owner.requestInfo;
         this.owner = owner;
         this.isOpen = true;
+        this.adapter.getMetrics().connectionHandleChanged(true);
     }
 
     public long performOperationWhileIWait(List<Integer> operands)
             throws IllegalStateException, IllegalArgumentException, ResourceException {
-        System.out.println("performOperationWhileIWait(operands=" + operands + ")");
+        return performOperationWhileIWait(operands, this.factory.getOperationTimeoutMsec());
+    }
+
+    public long performOperationWhileIWait(List<Integer> operands, long timeoutMsec)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return waitForOperation(Operands.of(operands), timeoutMsec);
+    }
+
+    public long performOperationWhileIWait(int[] operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return waitForOperation(Operands.of(operands), this.factory.getOperationTimeoutMsec());
+    }
+
+    public long performOperationWhileIWait(long[] operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return waitForOperation(Operands.of(operands), this.factory.getOperationTimeoutMsec());
+    }
+
+    public long performOperationWhileIWait(IntBuffer operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return waitForOperation(Operands.of(operands), this.factory.getOperationTimeoutMsec());
+    }
+
+    public void performOperationAndCallMeBack(List<Integer> operands, ResultsCallback callback)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        callMeBack(Operands.of(operands), callback);
+    }
+
+    public void performOperationAndCallMeBack(int[] operands, ResultsCallback callback)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        callMeBack(Operands.of(operands), callback);
+    }
+
+    public void performOperationAndCallMeBack(long[] operands, ResultsCallback callback)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        callMeBack(Operands.of(operands), callback);
+    }
+
+    public void performOperationAndCallMeBack(IntBuffer operands, ResultsCallback callback)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        callMeBack(Operands.of(operands), callback);
+    }
+
+    public CompletionStage<Long> performOperationAsync(List<Integer> operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return runAsync(Operands.of(operands));
+    }
+
+    public CompletionStage<Long> performOperationAsync(int[] operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return runAsync(Operands.of(operands));
+    }
+
+    public CompletionStage<Long> performOperationAsync(long[] operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return runAsync(Operands.of(operands));
+    }
+
+    public CompletionStage<Long> performOperationAsync(IntBuffer operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return runAsync(Operands.of(operands));
+    }
+
+    public long performOperationWhileIWait(Iterator<Integer> operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return waitForOperation(Operands.of(operands), this.factory.getOperationTimeoutMsec());
+    }
+
+    public long performOperationWhileIWait(IntStream operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return waitForOperation(Operands.of(operands.iterator()), this.factory.getOperationTimeoutMsec());
+    }
+
+    public long performOperationWhileIWait(InputStream operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return waitForOperation(Operands.of(operands), this.factory.getOperationTimeoutMsec());
+    }
+
+    public void performOperationAndCallMeBack(Iterator<Integer> operands, ResultsCallback callback)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        callMeBack(Operands.of(operands), callback);
+    }
+
+    public void performOperationAndCallMeBack(IntStream operands, ResultsCallback callback)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        callMeBack(Operands.of(operands.iterator()), callback);
+    }
+
+    public void performOperationAndCallMeBack(InputStream operands, ResultsCallback callback)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        callMeBack(Operands.of(operands), callback);
+    }
+
+    public CompletionStage<Long> performOperationAsync(Iterator<Integer> operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return runAsync(Operands.of(operands));
+    }
+
+    public CompletionStage<Long> performOperationAsync(IntStream operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return runAsync(Operands.of(operands.iterator()));
+    }
+
+    public CompletionStage<Long> performOperationAsync(InputStream operands)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        checkOperands(operands);
+        return runAsync(Operands.of(operands));
+    }
 
+    public BatchResult performOperations(List<List<Integer>> operandLists)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
         if (!this.isOpen) {
             throw new IllegalStateException("Cannot call operation on closed connection");
         }
-        if (operands == null) {
-            throw new IllegalArgumentException("Operands list cannot be null");
-        }
-
-        OperationCallback callback = new OperationCallback();
-        this.owner.performOperationOnResource(operands, callback);
-        
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < OPERATION_TIMEOUT_MSEC && !callback.isCompleted()) {
-            System.out.println("No result ready for cbid:" + callback.hashCode());
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                throw new IllegalStateException("Thread interrupted waiting for result", e);
-            }
+        if (operandLists == null) {
+            throw new IllegalArgumentException("Operand lists cannot be null");
         }
-        if (!callback.isCompleted()) {
-            throw new ResourceException("Failed to receive result from Simple Resource Adapter within " +
-                    OPERATION_TIMEOUT_MSEC / 1000 + " seconds");
+
+        long timeoutMsec = this.factory.getOperationTimeoutMsec();
+        CompletableFuture<BatchResult> completion = new CompletableFuture<BatchResult>();
+        associatedOwner().performBatchOnResource(operandLists, completion);
+        try {
+            return completion.get(timeoutMsec, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new ResourceException("Failed to receive batch result from Simple Resource Adapter within " +
+                    timeoutMsec + " milliseconds");
+        } catch (ExecutionException e) {
+            throw new ResourceException("Failed to complete SimpleResource batch operation due to exception",
+                    e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread interrupted waiting for result", e);
         }
+    }
 
-        System.out.println("Result received for cbid:" + callback.hashCode() +
-                            " (ex=" + callback.getException() +
-                            ", result=" + callback.getResult() + ")");
-        if (callback.getException() != null) {
-            throw new ResourceException("Failed to complete SimpleResource operation due to exception",
-                    callback.getException());
+    public AccumulatorSession openAccumulator() throws IllegalStateException {
+        if (!this.isOpen) {
+            throw new IllegalStateException("Cannot open an accumulator on a closed connection");
         }
-        return callback.getResult();
+        return new AccumulatorSessionImpl(this.requestInfo.getCalculationType());
     }
 
-    public void performOperationAndCallMeBack(List<Integer> operands, ResultsCallback callback)
-            throws IllegalStateException, IllegalArgumentException, ResourceException {
+    public void close() {
+        // Only the first close is passed on, so that the container hears about it once
+        // even if the handle is closed more than once or from more than one thread
+        CalculatorManagedConnectionImpl current = this.owner;
+        if (markClosed() && current != null) {
+            current.closeConnection(this);
+        }
+    }
+
+    /**
+     * Private helper to check that the connection can be used and that
+     * operands have been supplied
+     * @param operands the operands, in whatever form
+     * @throws IllegalStateException if the connection is closed
+     * @throws IllegalArgumentException if the operands are null
+     */
+    private void checkOperands(Object operands) throws IllegalStateException, IllegalArgumentException {
         if (!this.isOpen) {
             throw new IllegalStateException("Cannot call operation on closed connection");
         }
-        if (operands == null || callback == null) {
-            throw new IllegalArgumentException("Operands list and callback cannot be null");
+        if (operands == null) {
+            throw new IllegalArgumentException("Operands cannot be null");
         }
-        this.owner.performOperationOnResource(operands, callback);
     }
 
-    public void close() {
-        this.isOpen = false;
-        this.owner.closeConnection(this);
+    /**
+     * Private helper to run an operation and wait for its result
+     * @param operands the operands to process
+     * @param timeoutMsec the longest time to wait for the result
+     * @return the result of the operation
+     * @throws ResourceException if the operation fails or doesn't complete in time
+     */
+    private long waitForOperation(Operands operands, long timeoutMsec)
+            throws IllegalStateException, IllegalArgumentException, ResourceException {
+        if (timeoutMsec <= 0) {
+            throw new IllegalArgumentException("Operation timeout must be positive (was " + timeoutMsec + ")");
+        }
+
+        // The managed connection is only looked up once, as the container may
+        // dissociate this connection from it while the operation is running
+        CalculatorManagedConnectionImpl current = associatedOwner();
+        OperationCallback callback = current.takeOperationCallback();
+        current.performOperationOnResource(operands, callback);
+
+        // A callback that is given up on may still be called later, so only one whose
+        // result has arrived is handed back for reuse
+        try {
+            if (!callback.awaitCompletion(timeoutMsec)) {
+                throw new ResourceException("Failed to receive result from Simple Resource Adapter within " +
+                        timeoutMsec + " milliseconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread interrupted waiting for result", e);
+        }
+
+        AdapterLog log = this.adapter.getLog();
+        if (log.isEnabled(AdapterLog.Level.TRACE)) {
+            log.trace("Result received on {} (ex={}, result={})", this, callback.getException(), callback.getResult());
+        }
+        Exception failure = callback.getException();
+        long result = callback.getResult();
+        current.returnOperationCallback(callback);
+        if (failure != null) {
+            throw new ResourceException("Failed to complete SimpleResource operation due to exception", failure);
+        }
+        return result;
+    }
+
+    /**
+     * Private helper to run an operation and pass its result to a callback
+     * @param operands the operands to process
+     * @param callback the object to call when the result is available
+     * @throws ResourceException if the operation fails to start
+     */
+    private void callMeBack(Operands operands, ResultsCallback callback)
+            throws IllegalArgumentException, ResourceException {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback cannot be null");
+        }
+        associatedOwner().performOperationOnResource(operands, callback);
+    }
+
+    /**
+     * Private helper to run an operation and return a stage that completes with its result
+     * @param operands the operands to process
+     * @return the stage which is completed with the result
+     * @throws ResourceException if the operation fails to start
+     */
+    private CompletionStage<Long> runAsync(Operands operands) throws ResourceException {
+        FutureResultsCallback callback = new FutureResultsCallback();
+        associatedOwner().performOperationOnResource(operands, callback);
+        return callback.getFuture();
+    }
+
+    /**
+     * Called by the managed connection when it is cleaned up by the container to
+     * mark this handle as unusable without generating a close event
+     */
+    void invalidate() {
+        markClosed();
+    }
+
+    /**
+     * Private helper to mark the connection closed, counting it out of the
+     * adapter's metrics the first time
+     * @return true if the connection was open until now
+     */
+    private synchronized boolean markClosed() {
+        if (this.isOpen) {
+            this.isOpen = false;
+            this.adapter.getMetrics().connectionHandleChanged(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Private helper to return the managed connection to run an operation on,
+     * asking the connection manager to associate this connection with one if
+     * the container has dissociated it
+     * @return the managed connection
+     * @throws IllegalStateException if the connection is closed or can't be re-associated
+     * @throws ResourceException if the connection manager can't associate a managed connection
+     */
+    private CalculatorManagedConnectionImpl associatedOwner() throws IllegalStateException, ResourceException {
+        CalculatorManagedConnectionImpl current = this.owner;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            current = this.owner;
+            if (current == null) {
+                if (!this.isOpen) {
+                    throw new IllegalStateException("Cannot call operation on closed connection");
+                }
+                LazyAssociatableConnectionManager manager = this.connManager;
+                if (manager == null) {
+                    throw new IllegalStateException("Connection has been dissociated and its connection manager " +
+                            "does not support lazy association");
+                }
+                manager.associateConnection(this, this.factory, this.requestInfo);
+                current = this.owner;
+                if (current == null) {
+                    throw new ResourceException("Connection manager did not associate connection " + this +
+                            " with a managed connection");
+                }
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Set the connection manager that can associate this connection with a
+     * managed connection again after it has been dissociated
+     * @param manager the container's connection manager
+     */
+    void setConnectionManager(LazyAssociatableConnectionManager manager) {
+        this.connManager = manager;
+    }
+
+    /**
+     * Return the request info this connection was created for
+     * @return the request info
+     */
+    SimpleConnectionRequestInfo getRequestInfo() {
+        return this.requestInfo;
+    }
+
+    /**
+     * Return the managed connection this handle is currently associated with
+     * @return the managed connection, or null if the connection is dissociated
+     */
+    CalculatorManagedConnectionImpl getOwner() {
+        return this.owner;
     }
 
     public void setOwner(CalculatorManagedConnectionImpl owner) {
-        this.owner.disassociateConnection(this);
-        this.owner = owner;
+        CalculatorManagedConnectionImpl previous = OWNER.getAndSet(this, owner);
+        if (previous != null && previous != owner) {
+            previous.removeHandle(this);
+        }
+    }
+
+    /**
+     * Called by a managed connection when the container dissociates its handles,
+     * leaving this connection open but without a managed connection until it is
+     * next used
+     * @param previous the managed connection doing the dissociation, which is only
+     *        forgotten if the connection hasn't already moved to another one
+     */
+    void dissociate(CalculatorManagedConnectionImpl previous) {
+        OWNER.compareAndSet(this, previous, null);
     }
 
-    private static class OperationCallback implements ResultsCallback {
-        private Long result = null;
+    /**
+     * The callback used to turn an asynchronous calculation into a synchronous one.
+     * The waiting thread parks until either of the result methods is called; the
+     * volatile completed flag makes the result fields visible to it.  Once its result
+     * has been collected a callback can be reset and used for another request, so
+     * managed connections keep one spare rather than creating one per request.
+     */
+    static class OperationCallback implements ResultsCallback {
+        private volatile Thread waiter;
+        private volatile boolean completed;
+        private long result;
         private Exception failureException = null;
 
+        /**
+         * Prepare the callback for a new request, to be waited for by the calling thread
+         */
+        void reset() {
+            this.result = 0;
+            this.failureException = null;
+            this.waiter = Thread.currentThread();
+            this.completed = false;
+        }
+
         public void onSuccessfulCalculation(long result) throws IllegalArgumentException {
             this.result = result;
+            complete();
         }
 
         public void onFailedCalculation(Exception failure) throws IllegalArgumentException {
@@ -101,11 +452,26 @@ class CalculatorConnectionImpl implements CalculatorConnection {
                 throw new IllegalArgumentException("Cannot call Operation Callback with a null failure");
             }
             this.failureException = failure;
+            complete();
+        }
+
+        public boolean awaitCompletion(long timeoutMsec) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMsec);
+            while (!this.completed) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
         }
 
         public boolean isCompleted() {
-            boolean ret = (this.result != null) || (this.failureException != null);
-            return ret;
+            return this.completed;
         }
 
         public long getResult() {
@@ -115,5 +481,13 @@ class CalculatorConnectionImpl implements CalculatorConnection {
         public Exception getException() {
             return this.failureException;
         }
+
+        private void complete() {
+            this.completed = true;
+            Thread thread = this.waiter;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
     }
 }
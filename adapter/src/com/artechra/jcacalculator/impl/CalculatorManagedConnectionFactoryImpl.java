@@ -1,21 +1,44 @@
 package com.artechra.jcacalculator.impl;
 
+import com.artechra.jcacalculator.SimpleConnectionRequestInfo;
+
 import javax.resource.spi.*;
 import javax.resource.ResourceException;
 import javax.security.auth.Subject;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.PrintWriter;
 
 /**
  * The factory class for the Calculator Adapter's managed connection objects.
  *
+ * The factory also carries the pool sizing properties (MinConnections, MaxConnections
+ * and IdleTimeoutSeconds) that are set from the deployment descriptor.  The container
+ * owns the pool itself, but the factory enforces the maximum when creating connections,
+ * only matches idle connections of the requested calculation type and reports idle
+ * connections that have been unused for too long as invalid so that the container
+ * will destroy them.
+ *
  * @author Eoin Woods
  */
-public class CalculatorManagedConnectionFactoryImpl implements ManagedConnectionFactory, ResourceAdapterAssociation {
+public class CalculatorManagedConnectionFactoryImpl
+        implements ManagedConnectionFactory, ValidatingManagedConnectionFactory, ResourceAdapterAssociation {
     private static final long serialVersionUID = 8251336603953078348L;
 
+    static final int DEFAULT_MIN_CONNECTIONS = 0;
+    static final int DEFAULT_MAX_CONNECTIONS = 10;
+    static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+    static final int DEFAULT_MAX_HANDLES_PER_CONNECTION = 1;
+
     private ResourceAdapter resourceAdapter;
     private PrintWriter log;
+    private int minConnections = DEFAULT_MIN_CONNECTIONS;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+    private int maxHandlesPerConnection = DEFAULT_MAX_HANDLES_PER_CONNECTION;
+    private long operationTimeoutMsec = CalculatorConnectionImpl.OPERATION_TIMEOUT_MSEC;
+    private final AtomicInteger liveConnections = new AtomicInteger();
 
     /**
      * Implementation of ManagedConnectionFactory#createConnectionFactory().  Called by the
@@ -48,15 +71,29 @@ public class CalculatorManagedConnectionFactoryImpl implements ManagedConnection
      * @throws ResourceException if the connection can't be created
      */
     public ManagedConnection createManagedConnection(Subject subject, ConnectionRequestInfo connectionRequestInfo) throws ResourceException {
-        return new CalculatorManagedConnectionImpl(this.resourceAdapter);
+        if (!(connectionRequestInfo instanceof SimpleConnectionRequestInfo)) {
+            throw new ResourceException("Connection request info object is of the wrong type (was " +
+                    (connectionRequestInfo == null ? "null" : connectionRequestInfo.getClass().getName()) + ")");
+        }
+        // Reserve a slot before creating the connection so that concurrent callers can't
+        // push us over the limit between the check and the increment
+        if (this.liveConnections.incrementAndGet() > this.maxConnections) {
+            this.liveConnections.decrementAndGet();
+            throw new ResourceAllocationException("Calculator adapter connection limit of " +
+                    this.maxConnections + " reached");
+        }
+        return new CalculatorManagedConnectionImpl(this.resourceAdapter, this,
+                (SimpleConnectionRequestInfo) connectionRequestInfo);
     }
 
     /**
      * Implemenation of ManagedConnectionFactory#matchManagedConnections() called by the container to
-     * implement pooling.  This method should check whether there is an entry in the supplied set of
+     * implement pooling.  This method checks whether there is an entry in the supplied set of
      * managed connections that is compatible with the specified connection request info for the
-     * specified subject and if so, return it.  This implementation always returns null, effectively
-     * disabling pooling
+     * specified subject and if so, returns it.  A connection matches if it was created by this
+     * factory, is open and was created for the same calculation type, and either isn't currently
+     * handed out or (if MaxHandlesPerConnection allows) can take another handle.  Connections that
+     * are already in use are preferred, so that as few managed connections as possible are used.
      * @param set the set of connections to check
      * @param subject the subject the new connection is for
      * @param connectionRequestInfo the conn request info describing the attributes of the new connection
@@ -64,18 +101,188 @@ public class CalculatorManagedConnectionFactoryImpl implements ManagedConnection
      * @throws ResourceException if the comparison couldn't be made
      */
     public ManagedConnection matchManagedConnections(Set set, Subject subject, ConnectionRequestInfo connectionRequestInfo) throws ResourceException {
-        // returning null effectively disables connection pooling, so a new managed connection is always
-        // allocated as we don't return one to use
-        return null;
+        if (set == null || !(connectionRequestInfo instanceof SimpleConnectionRequestInfo)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        // Expired connections are left for the container to destroy, unless the pool is at its
+        // minimum size, when getInvalidConnections() keeps them and so they must still be usable
+        boolean refuseExpired = this.liveConnections.get() > this.minConnections;
+        CalculatorManagedConnectionImpl idleMatch = null;
+        for (Object candidate : set) {
+            if (!(candidate instanceof CalculatorManagedConnectionImpl)) {
+                continue;
+            }
+            CalculatorManagedConnectionImpl mc = (CalculatorManagedConnectionImpl) candidate;
+            if (mc.getFactory() != this) {
+                continue;
+            }
+            if (this.maxHandlesPerConnection != 1 && mc.canShare(connectionRequestInfo, this.maxHandlesPerConnection)) {
+                return mc;
+            }
+            if (idleMatch == null && mc.matches(connectionRequestInfo) && !(refuseExpired && isIdleExpired(mc, now))) {
+                idleMatch = mc;
+            }
+        }
+        return idleMatch;
+    }
+
+    /**
+     * Implementation of ValidatingManagedConnectionFactory#getInvalidConnections() called by the
+     * container to find connections which should be destroyed.  Closed connections are always
+     * invalid and idle connections that have passed the idle timeout are invalid as long as
+     * destroying them won't take the pool below its minimum size.
+     * @param set the set of connections to check
+     * @return the subset of the connections that are no longer valid
+     * @throws ResourceException if the check couldn't be made
+     */
+    public Set getInvalidConnections(Set set) throws ResourceException {
+        Set<ManagedConnection> invalid = new HashSet<ManagedConnection>();
+        if (set == null) {
+            return invalid;
+        }
+        long now = System.currentTimeMillis();
+        int surplus = this.liveConnections.get() - this.minConnections;
+        for (Object candidate : set) {
+            if (!(candidate instanceof CalculatorManagedConnectionImpl)) {
+                continue;
+            }
+            CalculatorManagedConnectionImpl mc = (CalculatorManagedConnectionImpl) candidate;
+            if (!mc.isOpen()) {
+                invalid.add(mc);
+            } else if (surplus > 0 && isIdleExpired(mc, now)) {
+                invalid.add(mc);
+                surplus--;
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Called by a managed connection created by this factory when it is destroyed so
+     * that the factory can keep track of the number of live connections
+     * @param mc the connection being destroyed
+     */
+    void connectionDestroyed(CalculatorManagedConnectionImpl mc) {
+        this.liveConnections.decrementAndGet();
+    }
+
+    /**
+     * Return the number of managed connections created by this factory which have not
+     * yet been destroyed
+     * @return the live connection count
+     */
+    int getLiveConnectionCount() {
+        return this.liveConnections.get();
+    }
+
+    /**
+     * Set the MinConnections property, the number of connections that are kept
+     * even when they have been idle for longer than the idle timeout
+     * @param min the minimum pool size
+     */
+    public void setMinConnections(Integer min) {
+        this.minConnections = (min == null ? DEFAULT_MIN_CONNECTIONS : min);
+    }
+
+    /**
+     * Return the MinConnections property
+     * @return the minimum pool size
+     */
+    public Integer getMinConnections() {
+        return this.minConnections;
+    }
+
+    /**
+     * Set the MaxConnections property, the largest number of managed connections
+     * that this factory will create at once
+     * @param max the maximum pool size
+     */
+    public void setMaxConnections(Integer max) {
+        this.maxConnections = (max == null ? DEFAULT_MAX_CONNECTIONS : max);
+    }
+
+    /**
+     * Return the MaxConnections property
+     * @return the maximum pool size
+     */
+    public Integer getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Set the IdleTimeoutSeconds property, how long a pooled connection can be
+     * unused before it can be discarded (zero or less means never)
+     * @param seconds the idle timeout in seconds
+     */
+    public void setIdleTimeoutSeconds(Integer seconds) {
+        this.idleTimeoutSeconds = (seconds == null ? DEFAULT_IDLE_TIMEOUT_SECONDS : seconds);
+    }
+
+    /**
+     * Return the IdleTimeoutSeconds property
+     * @return the idle timeout in seconds
+     */
+    public Integer getIdleTimeoutSeconds() {
+        return this.idleTimeoutSeconds;
+    }
+
+    /**
+     * Set the MaxHandlesPerConnection property, the number of connection handles that
+     * matchManagedConnections() lets share one managed connection.  With the default
+     * of 1 only unused connections match; with more, a connection that is already in
+     * use for the same calculation type matches while it has fewer handles than this.
+     * @param max the number of handles (zero or less means no limit)
+     */
+    public void setMaxHandlesPerConnection(Integer max) {
+        this.maxHandlesPerConnection = (max == null ? DEFAULT_MAX_HANDLES_PER_CONNECTION : max);
+    }
+
+    /**
+     * Return the MaxHandlesPerConnection property
+     * @return the number of handles that can share a managed connection
+     */
+    public Integer getMaxHandlesPerConnection() {
+        return this.maxHandlesPerConnection;
+    }
+
+    /**
+     * Set the OperationTimeoutMsec property, the default time that a connection's
+     * synchronous operations wait for their result
+     * @param msec the timeout in milliseconds
+     */
+    public void setOperationTimeoutMsec(Long msec) {
+        this.operationTimeoutMsec = (msec == null ? CalculatorConnectionImpl.OPERATION_TIMEOUT_MSEC : msec);
+    }
+
+    /**
+     * Return the OperationTimeoutMsec property
+     * @return the timeout in milliseconds
+     */
+    public Long getOperationTimeoutMsec() {
+        return this.operationTimeoutMsec;
+    }
+
+    /**
+     * Private helper to check if a pooled connection has been idle for longer
+     * than the configured idle timeout
+     * @param mc the connection to check
+     * @param now the current time in milliseconds
+     * @return true if the connection has been idle for too long
+     */
+    private boolean isIdleExpired(CalculatorManagedConnectionImpl mc, long now) {
+        return this.idleTimeoutSeconds > 0 && mc.isIdle() &&
+                now - mc.getLastUsedTime() > this.idleTimeoutSeconds * 1000L;
     }
 
     /**
      * Implementation of ManagedConnectionFactory#setLogWriter() called by the container to supply
-     * a log destination
+     * a log destination, which the resource adapter's log is then written to
      * @param printWriter  the destination to use
      */
     public void setLogWriter(PrintWriter printWriter) {
         this.log = printWriter;
+        routeLogToWriter();
     }
 
     /**
@@ -102,6 +309,17 @@ public class CalculatorManagedConnectionFactoryImpl implements ManagedConnection
      */
     public void setResourceAdapter(ResourceAdapter resourceAdapter) {
         this.resourceAdapter = resourceAdapter;
+        routeLogToWriter();
+    }
+
+    /**
+     * Private helper to send the resource adapter's log to the container's log writer,
+     * once both are known (the container may supply them in either order)
+     */
+    private void routeLogToWriter() {
+        if (this.log != null && this.resourceAdapter instanceof CalculatorResourceAdapter) {
+            ((CalculatorResourceAdapter)this.resourceAdapter).getLog().setWriter(this.log);
+        }
     }
 
     /**
@@ -115,6 +333,11 @@ public class CalculatorManagedConnectionFactoryImpl implements ManagedConnection
 
         CalculatorManagedConnectionFactoryImpl that = (CalculatorManagedConnectionFactoryImpl) o;
 
+        if (minConnections != that.minConnections) return false;
+        if (maxConnections != that.maxConnections) return false;
+        if (idleTimeoutSeconds != that.idleTimeoutSeconds) return false;
+        if (maxHandlesPerConnection != that.maxHandlesPerConnection) return false;
+        if (operationTimeoutMsec != that.operationTimeoutMsec) return false;
         if (log != null ? !log.equals(that.log) : that.log != null) return false;
         if (resourceAdapter != null ? !resourceAdapter.equals(that.resourceAdapter) : that.resourceAdapter != null)
             return false;
@@ -130,6 +353,11 @@ public class CalculatorManagedConnectionFactoryImpl implements ManagedConnection
         int result;
         result = (resourceAdapter != null ? resourceAdapter.hashCode() : 0);
         result = 31 * result + (log != null ? log.hashCode() : 0);
+        result = 31 * result + minConnections;
+        result = 31 * result + maxConnections;
+        result = 31 * result + idleTimeoutSeconds;
+        result = 31 * result + maxHandlesPerConnection;
+        result = 31 * result + (int) (operationTimeoutMsec ^ (operationTimeoutMsec >>> 32));
         return result;
     }
 }
@@ -3,6 +3,7 @@ package com.artechra.jcacalculator.impl;
 import com.artechra.jcacalculator.*;
 
 import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkCompletedException;
 import javax.resource.spi.work.WorkException;
 import javax.resource.spi.work.WorkEvent;
 import javax.resource.spi.*;
@@ -13,6 +14,11 @@ import java.io.PrintWriter;
 import java.lang.IllegalStateException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The implementation of the Calculator JCA Adapter's managed connection.  The managed
@@ -21,37 +27,66 @@ import java.util.ArrayList;
  * so that it can be created and thrown away cheaply).
  *
  * The managed connection manages the connection contract with the container and in
- * this case provides the calculation ability too.
+ * this case provides the calculation ability too.  It supports lazy association,
+ * so that a container can take it back from handles which are held open but idle
+ * and the handles come back for a managed connection when they are next used.
  *
  * @author Eoin Woods
  */
-class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompletionCallback {
+class CalculatorManagedConnectionImpl
+        implements ManagedConnection, DissociatableManagedConnection, WorkCompletionCallback {
 
     CalculatorResourceAdapter owningAdapter;
+    CalculatorManagedConnectionFactoryImpl factory;
     PrintWriter log;
-    private boolean isOpen;
+    private final AdapterLog logger;
+    private volatile boolean isOpen;
+    SimpleConnectionRequestInfo requestInfo;
     CalculationType calcType;
-    CalculatorConnectionImpl connHandle;
-    ResultsCallback connHandleCallback;
-    List<ConnectionEventListener> listeners;
+    // The connection handles currently using this managed connection; any number of
+    // handles can share it, each used from its own thread
+    private final List<CalculatorConnectionImpl> connHandles = new ArrayList<CalculatorConnectionImpl>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+    private volatile long lastUsedTime;
+
+    // Work items and synchronous callbacks that have finished with one request are
+    // kept for the next, so that in the steady state requests don't create them
+    static final int SPARE_ITEMS = 16;
+    private final CalculationWorkItem[] spareItems = new CalculationWorkItem[SPARE_ITEMS];
+    private int spareItemCount;
+    private final AtomicReference<CalculatorConnectionImpl.OperationCallback> spareCallback =
+            new AtomicReference<CalculatorConnectionImpl.OperationCallback>();
 
     /**
      * Constructor to create an initialised managed connnection
      * @param resourceAdapter the resource adapter this belongs to
+     * @param factory the managed connection factory that created this connection
+     * @param requestInfo the request info the connection was created for, which is
+     *        used as the key when matching pooled connections
      */
-    public CalculatorManagedConnectionImpl(ResourceAdapter resourceAdapter) {
+    public CalculatorManagedConnectionImpl(ResourceAdapter resourceAdapter,
+                                           CalculatorManagedConnectionFactoryImpl factory,
+                                           SimpleConnectionRequestInfo requestInfo) {
         if (!(resourceAdapter instanceof CalculatorResourceAdapter)) {
             throw new IllegalArgumentException("CalculatorManagedConnectionImpl must be used with CalculatorResourceAdapter (found " +
-                    resourceAdapter.getClass().getName() + ")");
+                    (resourceAdapter == null ? "null" : resourceAdapter.getClass().getName()) + ")");
         }
         this.owningAdapter = (CalculatorResourceAdapter) resourceAdapter;
+        this.logger = this.owningAdapter.getLog();
+        this.factory = factory;
+        this.requestInfo = requestInfo;
+        this.calcType = requestInfo.getCalculationType();
         this.isOpen = true;
-        this.listeners = new ArrayList<ConnectionEventListener>();
+        this.lastUsedTime = System.currentTimeMillis();
+        this.owningAdapter.getMetrics().managedConnectionChanged(true);
     }
 
     /**
      * Implementation of ManagedConnection#getConnection()
-     * Called by the container's Connection Manager to retrieve a managed connection
+     * Called by the container's Connection Manager to retrieve a managed connection.
+     * A managed connection that already has handles can hand out more, as long as
+     * they are for the same calculation type, so that the container can share it.
      * @param subject the security principal (subject, contains "n" principals) in use
      * @param connectionRequestInfo the request info defining the request (from the connection factory originally)
      * @return a connection for this adapter matching the request info
@@ -60,11 +95,7 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
      */
     public Object getConnection(Subject subject, ConnectionRequestInfo connectionRequestInfo)
             throws ResourceException, IllegalStateException {
-        log("getConnection(" + subject + ", " + connectionRequestInfo + ")");
-
-        if (this.connHandle != null) {
-            throw new IllegalStateException("ManagedConnection " + this.hashCode() + " already in use");
-        }
+        this.logger.debug("getConnection({}, {}) on {}", subject, connectionRequestInfo, this);
 
         if (!this.isOpen) {
             throw new IllegalStateException("Cannot retrieve connection from closed managed connection");
@@ -73,11 +104,18 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
             throw new IllegalArgumentException("Connection request info object is of the wrong type (was " +
                     connectionRequestInfo.getClass().getName() + ")");
         }
-        this.calcType = ((SimpleConnectionRequestInfo) connectionRequestInfo).getCalculationType();
-
-        this.connHandle = new CalculatorConnectionImpl(this);
-
-        return this.connHandle;
+        synchronized (this.connHandles) {
+            if (this.connHandles.isEmpty()) {
+                this.requestInfo = (SimpleConnectionRequestInfo) connectionRequestInfo;
+                this.calcType = this.requestInfo.getCalculationType();
+            } else if (!this.requestInfo.equals(connectionRequestInfo)) {
+                throw new IllegalStateException("ManagedConnection " + this.hashCode() + " already in use for " +
+                        this.calcType + " calculations");
+            }
+            CalculatorConnectionImpl handle = new CalculatorConnectionImpl(this);
+            this.connHandles.add(handle);
+            return handle;
+        }
     }
 
     /**
@@ -86,28 +124,41 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
      * @throws ResourceException if the connection can't be destroyed
      */
     public void destroy() throws ResourceException {
-        log("Managed connection " + this.toString() + " destroyed");
+        this.logger.debug("Managed connection {} destroyed", this);
         cleanup();
-        this.isOpen = false;
+        if (this.isOpen) {
+            this.isOpen = false;
+            this.owningAdapter.releaseWorkFor(this);
+            if (this.factory != null) {
+                this.factory.connectionDestroyed(this);
+            }
+            this.owningAdapter.getMetrics().managedConnectionChanged(false);
+        }
     }
 
     /**
      * Implementation of ManagedConnection#cleanup() called when the container wants to
      * reset a managed connection to its unused state so it can be returned to the
-     * connection pool
+     * connection pool.  Any handle still associated is invalidated, but no close event
+     * is sent as the container already knows it is reclaiming the connection.
      */
     public void cleanup() {
-        log("Managed connection " + this.toString() + " cleaned up");
-        if (this.connHandle != null) {
-            this.connHandle.close();
-            notifyListenersOfClose(this.connHandle);
+        this.logger.debug("Managed connection {} cleaned up", this);
+        List<CalculatorConnectionImpl> handles;
+        synchronized (this.connHandles) {
+            handles = new ArrayList<CalculatorConnectionImpl>(this.connHandles);
+            this.connHandles.clear();
+        }
+        for (CalculatorConnectionImpl handle : handles) {
+            handle.invalidate();
         }
+        this.lastUsedTime = System.currentTimeMillis();
     }
 
     /**
      * Implementation of ManagedConnection#associateConnection(), called by the
      * container to indicate that the specified connection should be associated
-     * with this managed connection
+     * with this managed connection, alongside any handles it already has
      * @param o the connection to associate (should be CalculatorConnectionImpl in this case)
      * @throws ResourceException if the wrong sort of connection is specified
      */
@@ -117,8 +168,46 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
                     "(found " + o.getClass().getName() + ")") ;
         }
         CalculatorConnectionImpl conn = (CalculatorConnectionImpl) o;
+        if (conn.getOwner() == this) {
+            return;
+        }
+        if (!this.isOpen) {
+            throw new IllegalStateException("Cannot associate connection with closed managed connection");
+        }
+        // The handle's calculation type decides this connection's type, so a handle
+        // can only join one that is unused or already doing its type of calculation
+        synchronized (this.connHandles) {
+            if (this.connHandles.isEmpty()) {
+                this.requestInfo = conn.getRequestInfo();
+                this.calcType = this.requestInfo.getCalculationType();
+            } else if (!this.requestInfo.equals(conn.getRequestInfo())) {
+                throw new ResourceException("ManagedConnection " + this.hashCode() + " is in use for " +
+                        this.calcType + " calculations and cannot be associated with " + conn);
+            }
+            this.connHandles.add(conn);
+        }
         conn.setOwner(this);
-        this.connHandle = conn;
+        this.lastUsedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Implementation of DissociatableManagedConnection#dissociateConnections(), called
+     * by the container to take this managed connection back from all of its handles
+     * without closing them.  The handles stay open and are associated with a managed
+     * connection again when next used; operations already running on this connection
+     * carry on and deliver their results as usual.
+     */
+    public void dissociateConnections() {
+        List<CalculatorConnectionImpl> handles;
+        synchronized (this.connHandles) {
+            handles = new ArrayList<CalculatorConnectionImpl>(this.connHandles);
+            this.connHandles.clear();
+        }
+        for (CalculatorConnectionImpl handle : handles) {
+            handle.dissociate(this);
+        }
+        this.lastUsedTime = System.currentTimeMillis();
+        this.logger.debug("Managed connection {} dissociated from {} connections", this, handles.size());
     }
 
     /**
@@ -126,10 +215,20 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
      * @param conn the connection that wishes to disassocate
      */
     public void disassociateConnection(CalculatorConnection conn) {
-        if (this.connHandle != conn) {
+        if (!removeHandle(conn)) {
             throw new IllegalArgumentException("Connection " + conn + " is not associated with this managed connection");
         }
-        this.connHandle = null;
+    }
+
+    /**
+     * Remove a connection from this managed connection's handles, if it is one of them
+     * @param conn the connection to remove
+     * @return true if the connection was associated with this managed connection
+     */
+    boolean removeHandle(CalculatorConnection conn) {
+        synchronized (this.connHandles) {
+            return this.connHandles.remove(conn);
+        }
     }
 
     /**
@@ -139,8 +238,12 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
      * @param conn the connection that is closing
      */
     public void closeConnection(CalculatorConnection conn) {
-        log("Managed connection closing connection " + conn);
-        this.disassociateConnection(conn);
+        this.logger.debug("Managed connection {} closing connection {}", this, conn);
+        if (!removeHandle(conn)) {
+            // dissociated as it closed, so the container has already taken this back
+            return;
+        }
+        this.lastUsedTime = System.currentTimeMillis();
         this.notifyListenersOfClose(conn);
     }
 
@@ -186,12 +289,14 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
      * @return a meta data object to describe this connection
      */
     public ManagedConnectionMetaData getMetaData() {
-        return new CalculatorManagedConnectionMetaData();
+        return new CalculatorManagedConnectionMetaData(this.factory == null ? 0 : this.factory.getMaxConnections());
     }
 
     /**
      * Implementation of ManagedConnection#setLogWriter() called by the container to
-     * provide the connection with a log to write to
+     * provide the connection with a log to write to.  The adapter writes its log to
+     * the writer given to the managed connection factory, so this one is just kept
+     * to be returned by getLogWriter().
      * @param printWriter the log destination to use
      */
     public void setLogWriter(PrintWriter printWriter) {
@@ -217,64 +322,88 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
      * @param workItemException the exception that the work item threw, if it failed, otherwise null
      */
     public void onWorkCompletion(Work completedWorkItem, int status, Exception workItemException) {
-        System.out.println("SimpleManagedConnection.onWorkCompletion(" + completedWorkItem + ", " +
-                status + ", " + workItemException + ")");
-
         if (status != WorkEvent.WORK_REJECTED && status != WorkEvent.WORK_COMPLETED) {
             throw new IllegalStateException("Unexpected work status of " + status + " received by managed connection");
         }
-        if (!(completedWorkItem instanceof CalculationWorkItem)) {
+        if (!(completedWorkItem instanceof CalculatorWork)) {
             throw new IllegalStateException("Unexpected work item type received by managed connection (found " +
                     completedWorkItem.getClass().getName() + ")");
         }
 
-        if (workItemException != null) {
-            this.connHandleCallback.onFailedCalculation(workItemException);
-        } else {
-            CalculationWorkItem calcItem = (CalculationWorkItem) completedWorkItem;
-            this.connHandleCallback.onSuccessfulCalculation(calcItem.getResult());
+        CalculatorWork item = (CalculatorWork) completedWorkItem;
+        item.deliverResult(workItemException);
+        if (item instanceof CalculationWorkItem) {
+            recycle((CalculationWorkItem) item);
         }
-        this.connHandleCallback = null;
     }
 
     /**
-     * Override of java.lang.Object#equals() as part of Java Bean requirements
-     * @param o the object to compare this one to
-     * @return true if they can be considered equal, false otherwise
+     * Return the factory that created this managed connection
+     * @return the owning managed connection factory
      */
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+    CalculatorManagedConnectionFactoryImpl getFactory() {
+        return this.factory;
+    }
 
-        CalculatorManagedConnectionImpl that = (CalculatorManagedConnectionImpl) o;
+    /**
+     * Used by the managed connection factory when matching pooled connections to check
+     * whether this connection can satisfy a request.  Note that equals() and hashCode()
+     * are deliberately left as identity based because the container keeps pooled
+     * connections in hashed collections and our state changes as we are used.
+     * @param connectionRequestInfo the request info for the new connection
+     * @return true if this connection is open, unused and for the same calculation type
+     */
+    boolean matches(ConnectionRequestInfo connectionRequestInfo) {
+        return this.isOpen && getHandleCount() == 0 &&
+                this.requestInfo != null && this.requestInfo.equals(connectionRequestInfo);
+    }
+
+    /**
+     * Used by the managed connection factory when matching connections to check whether
+     * this connection, which already has handles, can take another one for a request
+     * @param connectionRequestInfo the request info for the new connection
+     * @param maxHandles the most handles the connection may have, or zero or less for no limit
+     * @return true if this connection is open, in use for the same calculation type and
+     *         has room for another handle
+     */
+    boolean canShare(ConnectionRequestInfo connectionRequestInfo, int maxHandles) {
+        int handles = getHandleCount();
+        return this.isOpen && handles > 0 && (maxHandles <= 0 || handles < maxHandles) &&
+                this.requestInfo != null && this.requestInfo.equals(connectionRequestInfo);
+    }
+
+    /**
+     * Return the number of connection handles currently using this managed connection
+     * @return the number of handles
+     */
+    int getHandleCount() {
+        synchronized (this.connHandles) {
+            return this.connHandles.size();
+        }
+    }
 
-        if (isOpen != that.isOpen) return false;
-        if (calcType != that.calcType) return false;
-        if (connHandle != null ? !connHandle.equals(that.connHandle) : that.connHandle != null) return false;
-        if (connHandleCallback != null ? !connHandleCallback.equals(that.connHandleCallback) : that.connHandleCallback != null)
-            return false;
-        if (listeners != null ? !listeners.equals(that.listeners) : that.listeners != null) return false;
-        if (log != null ? !log.equals(that.log) : that.log != null) return false;
-        if (owningAdapter != null ? !owningAdapter.equals(that.owningAdapter) : that.owningAdapter != null)
-            return false;
+    /**
+     * Is this managed connection still usable?
+     * @return false once the connection has been destroyed
+     */
+    boolean isOpen() {
+        return this.isOpen;
+    }
 
-        return true;
+    /**
+     * Is this managed connection open but without a connection handle?
+     * @return true if the connection is sitting idle in the pool
+     */
+    boolean isIdle() {
+        return this.isOpen && getHandleCount() == 0;
     }
 
     /**
-     * Override of java.lang.Object#hashCode() as part of Java Bean requirements
-     * @return a hash value for this object
+     * Return the time at which this connection was last returned to the pool
+     * @return the time in milliseconds
      */
-    public int hashCode() {
-        int result;
-        result = (owningAdapter != null ? owningAdapter.hashCode() : 0);
-        result = 31 * result + (log != null ? log.hashCode() : 0);
-        result = 31 * result + (isOpen ? 1 : 0);
-        result = 31 * result + (calcType != null ? calcType.hashCode() : 0);
-        result = 31 * result + (connHandle != null ? connHandle.hashCode() : 0);
-        result = 31 * result + (connHandleCallback != null ? connHandleCallback.hashCode() : 0);
-        result = 31 * result + (listeners != null ? listeners.hashCode() : 0);
-        return result;
+    long getLastUsedTime() {
+        return this.lastUsedTime;
     }
 
     /**
@@ -283,27 +412,206 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
      * @param operands the operands to calculate
      * @param completionCallback the object to call when done
      * @throws ResourceException if the operation can't be run (probably a Work Manager problem)
-     * @throws IllegalStateException if this connection doesn't have a connection associated with it
+     * @throws IllegalStateException if this managed connection has been destroyed
+     */
+    void performOperationOnResource(Operands operands, ResultsCallback completionCallback)
+            throws ResourceException, IllegalStateException {
+        if (!this.isOpen) {
+            throw new IllegalStateException("Cannot perform an operation on a destroyed managed connection");
+        }
+        // Repeated calculations can be answered straight from the cache, on this thread
+        // and without creating a work item at all
+        ResultCache cache = this.owningAdapter.getResultCache();
+        Map<CalculationKey, CalculationWorkItem> inFlight = this.owningAdapter.getInFlightCalculations();
+        long keyLimit = this.owningAdapter.getCalculationKeyLimit();
+        CalculationKey key = (keyLimit > 0 ? CalculationKey.of(this.calcType, operands, keyLimit) : null);
+        // Keys may be made for larger calculations than are cached, to share running ones
+        if (cache != null && (key == null || operands.size() > this.owningAdapter.getResultCacheKeyLimit())) {
+            cache = null;
+        }
+        if (key != null && cache != null) {
+            Long cachedResult = cache.get(key);
+            if (cachedResult != null) {
+                completionCallback.onSuccessfulCalculation(cachedResult);
+                return;
+            }
+        }
+        CalculationWorkItem item = newWorkItem(operands, completionCallback);
+        item.setParallelThreshold(this.owningAdapter.getParallelThreshold());
+        item.setLog(this.logger);
+        if (key != null && cache != null) {
+            item.setResultCache(cache, key);
+        }
+        // If the same calculation is already running, wait for its result rather than
+        // running it again (unless it finishes before we can attach to it)
+        if (key != null && inFlight != null) {
+            CalculationWorkItem running = inFlight.putIfAbsent(key, item);
+            if (running == null) {
+                item.setInFlightRegistration(inFlight, key);
+            } else if (running.attach(completionCallback)) {
+                return;
+            }
+        }
+        // Small calculations are quicker to run here than to hand to the Work Manager
+        InlineDispatchPolicy dispatch = this.owningAdapter.getInlineDispatchPolicy();
+        if (dispatch != null) {
+            item.setDispatchPolicy(dispatch);
+            int parallelThreshold = this.owningAdapter.getParallelThreshold();
+            if (dispatch.shouldRunInline(operands.size()) &&
+                    (parallelThreshold <= 0 || operands.size() < parallelThreshold)) {
+                runInline(item);
+                return;
+            }
+        }
+        // Otherwise small calculations can share a trip through the Work Manager, but only
+        // those whose callers aren't blocked waiting, as they would wait for the window too
+        RequestCoalescer coalescer = this.owningAdapter.getRequestCoalescer();
+        if (coalescer != null && !(completionCallback instanceof CalculatorConnectionImpl.OperationCallback) &&
+                coalescer.accepts(operands.size())) {
+            // Tagged so that the item can be found and released if this connection is destroyed
+            item.setOwner(this);
+            coalescer.add(item);
+            return;
+        }
+        try {
+            runOnResource(item);
+        } catch (ResourceException e) {
+            item.abandon(e);
+            throw e;
+        } catch (RuntimeException e) {
+            item.abandon(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Protected method used by the Calculator Connection to ask for a batch of calculations
+     * to be performed as a single piece of work
+     * @param operandLists the operand lists to calculate
+     * @param completion the future to complete with the batch's results
+     * @throws ResourceException if the operation can't be run (probably a Work Manager problem)
+     * @throws IllegalStateException if this managed connection has been destroyed
      */
-    void performOperationOnResource(List<Integer> operands, ResultsCallback completionCallback)
+    void performBatchOnResource(List<List<Integer>> operandLists, CompletableFuture<BatchResult> completion)
             throws ResourceException, IllegalStateException {
-        if (this.connHandleCallback != null) {
-            throw new IllegalStateException("SimpleManagedConnection.performOperationOnResource() called " +
-                    "again when outstanding request is pending");
+        runOnResource(new BatchCalculationWorkItem(this.nextRequestId.incrementAndGet(),
+                this.calcType, operandLists, completion));
+    }
+
+    /**
+     * Private helper to run a small calculation directly on the calling thread and
+     * deliver its result, without involving the Work Manager
+     * @param item the item to run
+     * @throws IllegalStateException if this connection has been destroyed
+     */
+    private void runInline(CalculationWorkItem item) throws IllegalStateException {
+        if (!this.isOpen) {
+            throw new IllegalStateException("Cannot perform an operation on a destroyed managed connection");
+        }
+        long startedAt = System.nanoTime();
+        Exception failure = null;
+        try {
+            item.run();
+        } catch (RuntimeException e) {
+            // Reported just as the Work Manager would report it
+            failure = new WorkCompletedException(e);
+        }
+        long completedAt = System.nanoTime();
+        try {
+            item.deliverResult(failure);
+        } finally {
+            this.owningAdapter.getMetrics().workRanInline(this.calcType, failure != null,
+                    startedAt, completedAt, System.nanoTime());
+        }
+        recycle(item);
+    }
+
+    /**
+     * Private helper to get a work item for a request, reusing a spare one if there is one
+     * @param operands the operands to process
+     * @param completionCallback the object to pass the result to
+     * @return the work item, ready to run
+     */
+    private CalculationWorkItem newWorkItem(Operands operands, ResultsCallback completionCallback) {
+        long requestId = this.nextRequestId.incrementAndGet();
+        CalculationWorkItem item = null;
+        synchronized (this.spareItems) {
+            if (this.spareItemCount > 0) {
+                item = this.spareItems[--this.spareItemCount];
+                this.spareItems[this.spareItemCount] = null;
+            }
+        }
+        if (item == null) {
+            return new CalculationWorkItem(requestId, this.calcType, operands, completionCallback);
+        }
+        item.reinitialise(requestId, this.calcType, operands, completionCallback);
+        return item;
+    }
+
+    /**
+     * Private helper to keep a work item which has delivered its result for reuse,
+     * unless other requesters may still refer to it or there are enough spares already
+     * @param item the finished work item
+     */
+    private void recycle(CalculationWorkItem item) {
+        if (!item.isReusable()) {
+            return;
+        }
+        item.clear();
+        synchronized (this.spareItems) {
+            if (this.spareItemCount < SPARE_ITEMS) {
+                this.spareItems[this.spareItemCount++] = item;
+            }
+        }
+    }
+
+    /**
+     * Package scope method, used by connection handles to get a callback to wait for
+     * a synchronous request's result with, reusing the spare one if it is free
+     * @return a callback, reset and ready to use by the calling thread
+     */
+    CalculatorConnectionImpl.OperationCallback takeOperationCallback() {
+        CalculatorConnectionImpl.OperationCallback callback = this.spareCallback.getAndSet(null);
+        if (callback == null) {
+            callback = new CalculatorConnectionImpl.OperationCallback();
+        }
+        callback.reset();
+        return callback;
+    }
+
+    /**
+     * Package scope method, used by connection handles to hand back a callback whose
+     * result has been collected, so that the next synchronous request can reuse it
+     * @param callback the finished callback
+     */
+    void returnOperationCallback(CalculatorConnectionImpl.OperationCallback callback) {
+        this.spareCallback.set(callback);
+    }
+
+    /**
+     * Private helper to pass a work item to the adapter to run.  Any number of requests
+     * can be outstanding at once and each is completed independently when its work item
+     * finishes; the adapter keeps track of them, so that they can be released if this
+     * connection is destroyed.
+     * @param item the item to run
+     * @throws ResourceException if the item can't be run
+     * @throws IllegalStateException if this connection has been destroyed
+     */
+    private void runOnResource(CalculatorWork item) throws ResourceException, IllegalStateException {
+        if (!this.isOpen) {
+            throw new IllegalStateException("Cannot perform an operation on a destroyed managed connection");
         }
-        Work item = new CalculationWorkItem(this.calcType, operands);
-        this.connHandleCallback = completionCallback;
         try {
             this.owningAdapter.runWorkObject(item, this);
         } catch (WorkException e) {
-            this.connHandleCallback = null;
             throw new ResourceException("Could not run work item", e);
         }
     }
 
     /**
      * Helper method used when connections are closed to notify all of the
-     * registered listeners of the event
+     * registered listeners of the event.  Handles can close concurrently, and
+     * the listener list can be iterated while the container changes it.
      * @param conn the connection that is closing
      */
     private void notifyListenersOfClose(CalculatorConnection conn) {
@@ -314,16 +622,6 @@ class CalculatorManagedConnectionImpl implements ManagedConnection, WorkCompleti
         }
     }
 
-    /**
-     * Helper method to allow easy logging of simple messages
-     * @param message the message to write
-     */
-    private void log(String message) {
-        if (this.log == null) {
-            this.log = new PrintWriter(System.out);
-        }
-        this.log.println(message);
-    }
 
 
 }
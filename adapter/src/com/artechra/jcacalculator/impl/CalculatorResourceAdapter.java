@@ -1,6 +1,8 @@
 package com.artechra.jcacalculator.impl;
 
+import com.artechra.jcacalculator.AdapterSaturatedException;
 import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.embedded.EmbeddedWorkManager;
 
 import javax.resource.spi.endpoint.MessageEndpointFactory;
 import javax.resource.spi.ResourceAdapter;
@@ -9,7 +11,13 @@ import javax.resource.spi.ActivationSpec;
 import javax.resource.spi.work.*;
 import javax.resource.ResourceException;
 import javax.transaction.xa.XAResource;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.Serializable;
 
 /**
@@ -32,13 +40,54 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
     // in "javax.resource.spi.work.WorkRejectedException: error code: 1" exceptions.
     // Error code 1 turns out to mean START_TIMED_OUT and it appears that the BEA
     // work manager sometimes pauses for a number of seconds before starting work.
+    // So the Work Manager is always given INDEFINITE and the adapter enforces its
+    // own start deadline (WorkStartDeadlineMsec) in the work items themselves.
     static final long WM_START_TIMEOUT_MSEC = WorkManager.INDEFINITE ;
 
     private CalculationType calculationType ;    
 
+    private int parallelThreshold ; // Operand count above which calculations run in parallel
+
+    private int resultCacheMaxEntries ; // Zero means results aren't cached
+    private long resultCacheMaxWeight = 1000000 ;
+    private long resultCacheTtlMsec = 60000 ;
+    private int resultCacheMaxKeyOperands = 256 ; // Larger calculations aren't cached
+    private ResultCache resultCache ;
+
+    private boolean singleFlight ; // Whether identical running calculations are shared
+    private int singleFlightMaxOperands = 10000 ;
+    private Map<CalculationKey, CalculationWorkItem> inFlightCalculations ;
+
+    private int maxInFlightWork ; // Zero means no limit
+    private long maxInFlightOperandBytes ; // Zero means no limit
+    private long admissionWaitMsec ; // Zero means saturated requests fail at once
+    private long workStartDeadlineMsec ; // Zero means work can wait to start indefinitely
+    private transient AdmissionController admission ;
+
+    private long inlineMaxServiceMicros ; // Zero means all calculations use the Work Manager
+    private transient InlineDispatchPolicy inlineDispatchPolicy ;
+
+    private long coalesceWindowMicros ; // Zero means requests aren't coalesced
+    private int coalesceMaxBatch = 64 ;
+    private int coalesceMaxOperands = 100 ;
+    private transient RequestCoalescer requestCoalescer ;
+
+    private boolean useVirtualThreads ; // Whether to run work on our own virtual threads
+    private transient EmbeddedWorkManager virtualThreadWorkManager ;
+
     private WorkManager workManager; // The WM used to run asynchronous work
 
-    private Map<Work, Date> runningWorkObjects = new HashMap<Work, Date>();
+    // The work items currently in the Work Manager, keyed by an id that is allocated
+    // when each item is submitted and carried by the item's listener.  Each listener
+    // is used for a single work item and removes itself when the item completes.
+    private final transient Map<Long, WorkListenerCallback> runningWorkObjects =
+            new ConcurrentHashMap<Long, WorkListenerCallback>();
+    private final transient AtomicLong nextWorkId = new AtomicLong();
+
+    private final transient AdapterLog logger = new AdapterLog();
+
+    private final transient AdapterMetrics metrics = new AdapterMetrics();
+    private transient ObjectName metricsName ; // Where the metrics are registered in JMX, if they are
 
     /**
      * Implementation of ResourceAdapter#start(), called when the adapter
@@ -46,9 +95,47 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
      * @param context a context object that allows a Work Manager to be retrieved
      */
     public void start(BootstrapContext context) {
-        log("CalculatorResourceAdapter.start()'ing");
+        this.logger.start(context.getWorkManager());
+        this.logger.info("CalculatorResourceAdapter.start()'ing");
         this.workManager = context.getWorkManager();
-        log("CalculatorResourceAdapter.started");
+        if (this.useVirtualThreads) {
+            this.virtualThreadWorkManager = EmbeddedWorkManager.newVirtualThreadWorkManager();
+            if (this.virtualThreadWorkManager != null) {
+                this.logger.info("Running work on virtual threads rather than the container's Work Manager");
+                this.workManager = this.virtualThreadWorkManager;
+            } else {
+                this.logger.warn("Virtual threads are not available in this JVM - using the container's Work Manager");
+            }
+        }
+        if (this.resultCacheMaxEntries > 0) {
+            this.resultCache = new ResultCache(this.resultCacheMaxEntries, this.resultCacheMaxWeight,
+                    this.resultCacheTtlMsec);
+        }
+        if (this.singleFlight) {
+            this.inFlightCalculations = new ConcurrentHashMap<CalculationKey, CalculationWorkItem>();
+        }
+        if (this.maxInFlightWork > 0 || this.maxInFlightOperandBytes > 0) {
+            this.admission = new AdmissionController(this.maxInFlightWork, this.maxInFlightOperandBytes,
+                    this.admissionWaitMsec);
+            this.logger.info("Admission control enabled: {}", this.admission);
+        }
+        if (this.inlineMaxServiceMicros > 0) {
+            this.inlineDispatchPolicy = new InlineDispatchPolicy(this.inlineMaxServiceMicros);
+        }
+        if (this.coalesceWindowMicros > 0) {
+            RequestCoalescer coalescer = new RequestCoalescer(this, this.coalesceWindowMicros, this.coalesceMaxBatch,
+                    this.coalesceMaxOperands);
+            try {
+                coalescer.start(context.getWorkManager());
+                this.requestCoalescer = coalescer;
+                this.metrics.setRequestCoalescer(coalescer);
+            } catch (WorkException e) {
+                this.logger.warn("Could not start the request coalescer, so requests won't be coalesced: {}", e);
+            }
+        }
+        this.metrics.setWorkManager(this.workManager);
+        registerMetrics();
+        this.logger.info("CalculatorResourceAdapter.started");
     }
 
     /**
@@ -58,15 +145,28 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
      * Manager and if there are, they are stopped.
      */
     public void stop() {
-        log("CalculatorResourceAdapter.stop()'ing");
-        log("Adapter has " + this.runningWorkObjects.size() + " running work items");
-        for (Work item : this.runningWorkObjects.keySet()) {
-            long startTime = this.runningWorkObjects.get(item).getTime();
-            long now = System.currentTimeMillis();
-            log("Work item " + item + " has been running for " + (now - startTime) + " milliseconds - stopping");
-            item.release();
+        this.logger.info("CalculatorResourceAdapter.stop()'ing");
+        if (this.requestCoalescer != null) {
+            // Send any open batches while there is still a Work Manager to run them
+            this.requestCoalescer.stop();
+            this.logger.info("Request coalescer statistics: {}", this.requestCoalescer);
+        }
+        List<WorkListenerCallback> running = getRunningListeners(null);
+        this.logger.info("Adapter has {} running work items", running.size());
+        for (WorkListenerCallback listener : running) {
+            listener.releaseWork("has been running for {} milliseconds - stopping");
+        }
+        if (this.virtualThreadWorkManager != null) {
+            this.virtualThreadWorkManager.shutdown();
+            this.virtualThreadWorkManager = null;
+        }
+        if (this.resultCache != null) {
+            this.logger.info("Result cache statistics: {}", this.resultCache);
         }
-        log("CalculatorResourceAdapter stopped");
+        this.logger.info("Adapter metrics: {}", this.metrics);
+        unregisterMetrics();
+        this.logger.info("CalculatorResourceAdapter stopped");
+        this.logger.stop();
     }
 
     /**
@@ -98,7 +198,7 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
      * @return a list of resource managers.  This adapter always returns an empty list.
      */
     public XAResource[] getXAResources(ActivationSpec[] activationSpecs) {
-        log("getXAResources() - returning empty list");
+        this.logger.debug("getXAResources() - returning empty list");
         // called for recovery information, so we return none
         return new XAResource[0];
     }
@@ -120,6 +220,348 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
         return this.calculationType.toString() ;
     }
 
+    /**
+     * Set the value of the Parallel Threshold property, the number of operands
+     * at which a calculation is split up and run in parallel (zero to disable)
+     * @param threshold the operand count
+     */
+    public void setParallelThreshold(Integer threshold) {
+        this.parallelThreshold = (threshold == null ? 0 : threshold) ;
+    }
+
+    /**
+     * Return the current Parallel Threshold property for this adapter
+     * @return the operand count at which calculations run in parallel
+     */
+    public Integer getParallelThreshold() {
+        return this.parallelThreshold ;
+    }
+
+    /**
+     * Set the value of the Result Cache Max Entries property, the number of results
+     * the adapter keeps to answer repeated calculations (zero to disable the cache)
+     * @param maxEntries the number of results to keep
+     */
+    public void setResultCacheMaxEntries(Integer maxEntries) {
+        this.resultCacheMaxEntries = (maxEntries == null ? 0 : maxEntries) ;
+    }
+
+    /**
+     * Return the current Result Cache Max Entries property for this adapter
+     * @return the number of results kept
+     */
+    public Integer getResultCacheMaxEntries() {
+        return this.resultCacheMaxEntries ;
+    }
+
+    /**
+     * Set the value of the Result Cache Max Weight property, the total number of
+     * operands that the cached results' keys can hold
+     * @param maxWeight the number of operands
+     */
+    public void setResultCacheMaxWeight(Long maxWeight) {
+        this.resultCacheMaxWeight = (maxWeight == null ? 0 : maxWeight) ;
+    }
+
+    /**
+     * Return the current Result Cache Max Weight property for this adapter
+     * @return the number of operands
+     */
+    public Long getResultCacheMaxWeight() {
+        return this.resultCacheMaxWeight ;
+    }
+
+    /**
+     * Set the value of the Result Cache TTL property, how long a cached result
+     * can be used for (zero or less for no limit)
+     * @param ttlMsec the time to live in milliseconds
+     */
+    public void setResultCacheTtlMsec(Long ttlMsec) {
+        this.resultCacheTtlMsec = (ttlMsec == null ? 0 : ttlMsec) ;
+    }
+
+    /**
+     * Return the current Result Cache TTL property for this adapter
+     * @return the time to live in milliseconds
+     */
+    public Long getResultCacheTtlMsec() {
+        return this.resultCacheTtlMsec ;
+    }
+
+    /**
+     * Set the value of the Result Cache Max Key Operands property, the largest
+     * calculation whose result is cached.  Each calculation up to this size has its
+     * operands copied into a key, so this is kept much smaller than the cache's
+     * total weight.
+     * @param maxOperands the number of operands
+     */
+    public void setResultCacheMaxKeyOperands(Integer maxOperands) {
+        this.resultCacheMaxKeyOperands = (maxOperands == null ? 0 : maxOperands) ;
+    }
+
+    /**
+     * Return the current Result Cache Max Key Operands property for this adapter
+     * @return the number of operands
+     */
+    public Integer getResultCacheMaxKeyOperands() {
+        return this.resultCacheMaxKeyOperands ;
+    }
+
+    /**
+     * Package scope method, used by the Managed Connection to find the result cache
+     * @return the cache, or null if results aren't being cached
+     */
+    ResultCache getResultCache() {
+        return this.resultCache ;
+    }
+
+    /**
+     * Set the value of the Single Flight property, which when true makes requests
+     * for a calculation that is already running wait for and share its result
+     * rather than running it again
+     * @param enabled whether to share identical running calculations
+     */
+    public void setSingleFlight(Boolean enabled) {
+        this.singleFlight = (enabled != null && enabled) ;
+    }
+
+    /**
+     * Return the current Single Flight property for this adapter
+     * @return whether identical running calculations are shared
+     */
+    public Boolean getSingleFlight() {
+        return this.singleFlight ;
+    }
+
+    /**
+     * Set the value of the Single Flight Max Operands property, the largest
+     * calculation that is checked against the running calculations
+     * @param maxOperands the number of operands
+     */
+    public void setSingleFlightMaxOperands(Integer maxOperands) {
+        this.singleFlightMaxOperands = (maxOperands == null ? 0 : maxOperands) ;
+    }
+
+    /**
+     * Return the current Single Flight Max Operands property for this adapter
+     * @return the number of operands
+     */
+    public Integer getSingleFlightMaxOperands() {
+        return this.singleFlightMaxOperands ;
+    }
+
+    /**
+     * Set the value of the Max In Flight Work property, the most work items that can
+     * be in progress at once, beyond which requests are refused with an
+     * AdapterSaturatedException
+     * @param max the number of work items, or 0 for no limit
+     */
+    public void setMaxInFlightWork(Integer max) {
+        this.maxInFlightWork = (max == null ? 0 : max) ;
+    }
+
+    /**
+     * Return the current Max In Flight Work property for this adapter
+     * @return the number of work items
+     */
+    public Integer getMaxInFlightWork() {
+        return this.maxInFlightWork ;
+    }
+
+    /**
+     * Set the value of the Max In Flight Operand Bytes property, the most operand
+     * data that can be in progress at once, beyond which requests are refused with
+     * an AdapterSaturatedException
+     * @param max the number of bytes, or 0 for no limit
+     */
+    public void setMaxInFlightOperandBytes(Long max) {
+        this.maxInFlightOperandBytes = (max == null ? 0 : max) ;
+    }
+
+    /**
+     * Return the current Max In Flight Operand Bytes property for this adapter
+     * @return the number of bytes
+     */
+    public Long getMaxInFlightOperandBytes() {
+        return this.maxInFlightOperandBytes ;
+    }
+
+    /**
+     * Set the value of the Admission Wait Msec property, how long a request can wait
+     * for the adapter to have room for it before being refused
+     * @param waitMsec the wait in milliseconds, or 0 to refuse at once
+     */
+    public void setAdmissionWaitMsec(Long waitMsec) {
+        this.admissionWaitMsec = (waitMsec == null ? 0 : waitMsec) ;
+    }
+
+    /**
+     * Return the current Admission Wait Msec property for this adapter
+     * @return the wait in milliseconds
+     */
+    public Long getAdmissionWaitMsec() {
+        return this.admissionWaitMsec ;
+    }
+
+    /**
+     * Set the value of the Work Start Deadline Msec property, how long a work item
+     * can wait in the Work Manager before starting.  Items that start later fail
+     * with a START_TIMED_OUT WorkRejectedException without running.
+     * @param deadlineMsec the deadline in milliseconds, or 0 for none
+     */
+    public void setWorkStartDeadlineMsec(Long deadlineMsec) {
+        this.workStartDeadlineMsec = (deadlineMsec == null ? 0 : deadlineMsec) ;
+    }
+
+    /**
+     * Return the current Work Start Deadline Msec property for this adapter
+     * @return the deadline in milliseconds
+     */
+    public Long getWorkStartDeadlineMsec() {
+        return this.workStartDeadlineMsec ;
+    }
+
+    /**
+     * Set the value of the Inline Max Service Micros property.  Calculations that are
+     * expected, from the service times seen so far, to take less than this are run
+     * on the calling thread rather than being handed to the Work Manager.
+     * @param maxServiceMicros the service time in microseconds, or 0 to always use
+     *        the Work Manager
+     */
+    public void setInlineMaxServiceMicros(Long maxServiceMicros) {
+        this.inlineMaxServiceMicros = (maxServiceMicros == null ? 0 : maxServiceMicros) ;
+    }
+
+    /**
+     * Return the current Inline Max Service Micros property for this adapter
+     * @return the service time in microseconds
+     */
+    public Long getInlineMaxServiceMicros() {
+        return this.inlineMaxServiceMicros ;
+    }
+
+    /**
+     * Package scope method, used by the Managed Connection to decide whether to run
+     * a calculation on the calling thread
+     * @return the dispatch policy, or null if calculations always use the Work Manager
+     */
+    InlineDispatchPolicy getInlineDispatchPolicy() {
+        return this.inlineDispatchPolicy ;
+    }
+
+    /**
+     * Set the value of the Coalesce Window Micros property.  Small requests that
+     * arrive within this time of each other are gathered into one work item.
+     * @param windowMicros the window in microseconds, or 0 not to coalesce requests
+     */
+    public void setCoalesceWindowMicros(Long windowMicros) {
+        this.coalesceWindowMicros = (windowMicros == null ? 0 : windowMicros) ;
+    }
+
+    /**
+     * Return the current Coalesce Window Micros property for this adapter
+     * @return the window in microseconds
+     */
+    public Long getCoalesceWindowMicros() {
+        return this.coalesceWindowMicros ;
+    }
+
+    /**
+     * Set the value of the Coalesce Max Batch property, the most requests gathered
+     * into one work item, which is sent as soon as it is full
+     * @param maxBatch the number of requests
+     */
+    public void setCoalesceMaxBatch(Integer maxBatch) {
+        this.coalesceMaxBatch = (maxBatch == null ? 64 : maxBatch) ;
+    }
+
+    /**
+     * Return the current Coalesce Max Batch property for this adapter
+     * @return the number of requests
+     */
+    public Integer getCoalesceMaxBatch() {
+        return this.coalesceMaxBatch ;
+    }
+
+    /**
+     * Set the value of the Coalesce Max Operands property, the largest request
+     * that is coalesced rather than run on its own
+     * @param maxOperands the number of operands
+     */
+    public void setCoalesceMaxOperands(Integer maxOperands) {
+        this.coalesceMaxOperands = (maxOperands == null ? 100 : maxOperands) ;
+    }
+
+    /**
+     * Return the current Coalesce Max Operands property for this adapter
+     * @return the number of operands
+     */
+    public Integer getCoalesceMaxOperands() {
+        return this.coalesceMaxOperands ;
+    }
+
+    /**
+     * Package scope method, used by the Managed Connection to gather small requests
+     * into batches
+     * @return the request coalescer, or null if requests aren't coalesced
+     */
+    RequestCoalescer getRequestCoalescer() {
+        return this.requestCoalescer ;
+    }
+
+    /**
+     * Set the value of the Use Virtual Threads property, which makes the adapter run
+     * its calculations on a virtual thread each, rather than in the container's Work
+     * Manager, when the JVM supports virtual threads
+     * @param enabled true to use virtual threads
+     */
+    public void setUseVirtualThreads(Boolean enabled) {
+        this.useVirtualThreads = (enabled != null && enabled) ;
+    }
+
+    /**
+     * Return the current Use Virtual Threads property for this adapter
+     * @return whether calculations are run on virtual threads
+     */
+    public Boolean getUseVirtualThreads() {
+        return this.useVirtualThreads ;
+    }
+
+    /**
+     * Package scope method, used by the Managed Connection to find the calculations
+     * which are running and can be shared
+     * @return the running calculations, or null if they aren't being shared
+     */
+    Map<CalculationKey, CalculationWorkItem> getInFlightCalculations() {
+        return this.inFlightCalculations ;
+    }
+
+    /**
+     * Package scope method, used by the Managed Connection to find out the largest
+     * calculation whose result is cached
+     * @return the number of operands, or zero if results aren't cached
+     */
+    long getResultCacheKeyLimit() {
+        if (this.resultCache == null) {
+            return 0 ;
+        }
+        return Math.min(this.resultCacheMaxKeyOperands, this.resultCache.getMaxWeight()) ;
+    }
+
+    /**
+     * Package scope method, used by the Managed Connection to find out the largest
+     * calculation that it is worth creating a key for (which means copying its
+     * operands) so it can be found in the cache or among the running calculations
+     * @return the number of operands, or zero if keys aren't needed
+     */
+    long getCalculationKeyLimit() {
+        long limit = getResultCacheKeyLimit() ;
+        if (this.inFlightCalculations != null) {
+            limit = Math.max(limit, this.singleFlightMaxOperands) ;
+        }
+        return limit ;
+    }
+
     /**
      * Override of java.lang.Object#equals() implemented as part of Java Bean
      * compliance
@@ -132,8 +574,7 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
 
         CalculatorResourceAdapter that = (CalculatorResourceAdapter) o;
 
-        if (runningWorkObjects != null ? !runningWorkObjects.equals(that.runningWorkObjects) : that.runningWorkObjects != null)
-            return false;
+        if (calculationType != that.calculationType) return false;
         if (workManager != null ? !workManager.equals(that.workManager) : that.workManager != null) return false;
 
         return true;
@@ -147,47 +588,278 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
     public int hashCode() {
         int result;
         result = (workManager != null ? workManager.hashCode() : 0);
-        result = 31 * result + (runningWorkObjects != null ? runningWorkObjects.hashCode() : 0);
+        result = 31 * result + (calculationType != null ? calculationType.hashCode() : 0);
         return result;
     }
 
+    /**
+     * Set the value of the Log Level property, the most detailed level of message
+     * (ERROR, WARN, INFO, DEBUG or TRACE) that the adapter logs.  An empty value
+     * leaves the level unchanged, as does a name that isn't a level, which is
+     * logged as a warning rather than stopping the adapter being deployed.
+     * @param level the level name
+     */
+    public void setLogLevel(String level) {
+        if (level == null || level.trim().length() == 0) {
+            return ;
+        }
+        try {
+            this.logger.setLevel(AdapterLog.Level.valueOf(level.trim().toUpperCase(Locale.ROOT))) ;
+        } catch (IllegalArgumentException e) {
+            this.logger.warn("Unknown log level {} - keeping log level {}", level, this.logger.getLevel()) ;
+        }
+    }
+
+    /**
+     * Return the current Log Level property for this adapter
+     * @return the level name
+     */
+    public String getLogLevel() {
+        return this.logger.getLevel().name() ;
+    }
+
+    /**
+     * Package scope method, used by the adapter's other classes to write to its log
+     * @return the adapter's log
+     */
+    AdapterLog getLog() {
+        return this.logger;
+    }
+
+    /**
+     * Package scope method, used by the managed connections and connection factory to
+     * record metrics
+     * @return the adapter's metrics
+     */
+    AdapterMetrics getMetrics() {
+        return this.metrics;
+    }
+
     /**
      * Package scope method, used by the Managed Connection to execute asynchronous work
      * @param workObject the object to run in the Work Manager
      * @param callback the object to call when the workObject is complete
+     * @throws AdapterSaturatedException if the adapter has no room for more work
+     * @throws WorkException if the work object cannot be executed
+     */
+    void runWorkObject(Work workObject, WorkCompletionCallback callback)
+            throws AdapterSaturatedException, WorkException {
+        runWorkObject(workObject, callback, true);
+    }
+
+    /**
+     * Package scope method, used to execute asynchronous work from a thread that
+     * mustn't wait to be admitted, such as the request coalescer's
+     * @param workObject the object to run in the Work Manager
+     * @param callback the object to call when the workObject is complete
+     * @param mayWait false to fail at once if the adapter is saturated, rather than
+     *        wait up to AdmissionWaitMsec for room
+     * @throws AdapterSaturatedException if the adapter has no room for more work
      * @throws WorkException if the work object cannot be executed
      */
-    void runWorkObject(Work workObject, WorkCompletionCallback callback) throws WorkException {
-        log("Running my workObject=" + workObject) ;
-        runningWorkObjects.put(workObject, new Date());
-        this.workManager.startWork(workObject, WM_START_TIMEOUT_MSEC, null, new WorkListenerCallback(callback));
+    void runWorkObject(Work workObject, WorkCompletionCallback callback, boolean mayWait)
+            throws AdapterSaturatedException, WorkException {
+        this.logger.trace("Running work object {}", workObject);
+        CalculatorWork item = (workObject instanceof CalculatorWork ? (CalculatorWork)workObject : null);
+        long operandBytes = (item == null ? 0 : item.getOperandBytes());
+        if (this.admission != null) {
+            try {
+                this.admission.acquire(operandBytes, mayWait);
+            } catch (AdapterSaturatedException e) {
+                this.metrics.workSaturated();
+                throw e;
+            }
+        }
+        if (item != null && this.workStartDeadlineMsec > 0) {
+            item.setStartDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.workStartDeadlineMsec));
+        }
+        WorkListenerCallback listener = new WorkListenerCallback(this.nextWorkId.incrementAndGet(), workObject,
+                operandBytes, callback);
+        this.runningWorkObjects.put(listener.workId, listener);
+        this.metrics.workSubmitted();
+        try {
+            this.workManager.startWork(workObject, WM_START_TIMEOUT_MSEC, null, listener);
+        } catch (WorkException e) {
+            // Some Work Managers report a rejection to the listener as well as throwing,
+            // in which case the caller has already been told and mustn't be told twice
+            if (abandonWork(listener)) {
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            // A Work Manager that fails this way hasn't taken the work, so its room and
+            // registration are given back just as for a rejection
+            if (abandonWork(listener)) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Private helper to undo the submission of a work item that the Work Manager
+     * wouldn't take, unless its listener has already been told of the outcome
+     * @param listener the work item's listener
+     * @return true if the submission was undone, so the caller must report the failure
+     */
+    private boolean abandonWork(WorkListenerCallback listener) {
+        if (!listener.finish()) {
+            return false;
+        }
+        this.runningWorkObjects.remove(listener.workId);
+        releaseAdmission(listener.operandBytes);
+        this.metrics.workRejected();
+        return true;
+    }
+
+    /**
+     * Package scope method, used by a managed connection that is being destroyed to
+     * stop the work it still has in the Work Manager
+     * @param owner the callback the work was started with
+     */
+    void releaseWorkFor(WorkCompletionCallback owner) {
+        for (WorkListenerCallback listener : getRunningListeners(owner)) {
+            listener.releaseWork("is outstanding for {} milliseconds - releasing");
+        }
+        // Coalesced calculations are run by the coalescer's work items, which can
+        // hold other connections' calculations too
+        RequestCoalescer coalescer = this.requestCoalescer ;
+        if (coalescer != null) {
+            for (WorkListenerCallback listener : getRunningListeners(coalescer)) {
+                listener.releaseCoalescedWorkFor(owner);
+            }
+        }
     }
 
     /**
-     * Private helper to make writing to whatever log is in use standardised
-     * @param message the message to write
+     * Private helper to find the listeners of the work items in the Work Manager
+     * @param owner the completion callback to find the work for, or null for all work
+     * @return the listeners
      */
-    private void log(String message) {
-        System.out.println(message) ;
+    private List<WorkListenerCallback> getRunningListeners(WorkCompletionCallback owner) {
+        List<WorkListenerCallback> running = new ArrayList<WorkListenerCallback>();
+        for (WorkListenerCallback listener : this.runningWorkObjects.values()) {
+            if (owner == null || listener.callback == owner) {
+                running.add(listener);
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Private helper to give back the room a finished work item took up
+     * @param operandBytes the size of the item's operands
+     */
+    private void releaseAdmission(long operandBytes) {
+        if (this.admission != null) {
+            this.admission.release(operandBytes);
+        }
+    }
+
+    /**
+     * Private helper to register the adapter's metrics in the platform MBean server.
+     * Failing to do so is logged but doesn't stop the adapter starting.
+     */
+    private void registerMetrics() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.artechra.jcacalculator:type=AdapterMetrics,name=" +
+                    "CalculatorResourceAdapter-" + Integer.toHexString(System.identityHashCode(this)));
+            server.registerMBean(this.metrics, name);
+            this.metricsName = name;
+        } catch (Exception e) {
+            this.logger.warn("Could not register adapter metrics MBean: {}", e);
+        }
+    }
+
+    /**
+     * Private helper to remove the adapter's metrics from the platform MBean server
+     */
+    private void unregisterMetrics() {
+        if (this.metricsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.metricsName);
+        } catch (Exception e) {
+            this.logger.warn("Could not unregister adapter metrics MBean: {}", e);
+        }
+        this.metricsName = null;
     }
 
     /**
      * A Work Listener nested class which is used to receive lifecycle events for
      * the outstanding work objects which the Work Manager is running for the
-     * adapter
+     * adapter.  Each listener is used for a single work item.  Listeners aren't
+     * reused, so that a late or duplicated event for an item that has completed
+     * can never be taken for an event about a later one.
      *
      * @author Eoin Woods
      */
     private class WorkListenerCallback implements WorkListener {
-        WorkCompletionCallback callback;
+        final long workId;
+        private final Work work;
+        private final long operandBytes;
+        final WorkCompletionCallback callback;
+        private final long submittedAt; // System.nanoTime() at each stage of the work's life
+        private volatile long acceptedAt;
+        private volatile long startedAt;
+        private boolean active; // guarded by this listener's lock
 
         /**
-         * Create the callback with a completion callback object to
-         * allow us to notify our callers that work has completed
+         * Create a listener for a work item that is about to be started, with a
+         * completion callback object to allow us to notify our callers that work
+         * has completed
+         * @param workId the id the work item is registered under
+         * @param work the work item this listener is for
+         * @param operandBytes the size of the work item's operands
          * @param completionCallback the callback to call when the work is done
          */
-        public WorkListenerCallback(WorkCompletionCallback completionCallback) {
+        WorkListenerCallback(long workId, Work work, long operandBytes, WorkCompletionCallback completionCallback) {
+            this.workId = workId;
+            this.work = work;
+            this.operandBytes = operandBytes;
             this.callback = completionCallback;
+            this.submittedAt = System.nanoTime();
+            this.active = true;
+        }
+
+        /**
+         * Mark the listener's work item as finished, which only succeeds once, so
+         * that only one completion is processed for the item
+         * @return true if the item was still running
+         */
+        synchronized boolean finish() {
+            if (!this.active) {
+                return false;
+            }
+            this.active = false;
+            return true;
+        }
+
+        /**
+         * Ask the listener's work item to stop, if it hasn't already finished.  This
+         * is done holding the listener's lock, which finish() also takes, so that an
+         * item which has completed (and may have been reused for another request by
+         * its managed connection) is never released.
+         * @param message the message to log, given the time the item has been running
+         */
+        synchronized void releaseWork(String message) {
+            if (this.active) {
+                logger.info("Work item {} " + message, this.work,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.submittedAt));
+                this.work.release();
+            }
+        }
+
+        /**
+         * Ask the listener's coalesced work item to stop the calculations that belong
+         * to a managed connection, if it hasn't already finished (see releaseWork())
+         * @param owner the managed connection
+         */
+        synchronized void releaseCoalescedWorkFor(WorkCompletionCallback owner) {
+            if (this.active && ((CoalescedWorkItem) this.work).releaseFor(owner)) {
+                logger.info("Work item {} has calculations for {} outstanding for {} milliseconds - releasing them",
+                        this.work, owner, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.submittedAt));
+            }
         }
 
         /**
@@ -196,9 +868,8 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
          * @param event the event defining the work item and state
          */
         public void workAccepted(WorkEvent event) {
-            log("Work item " + event.getWork() + " successfully accepted");
-            Work workObject = event.getWork() ;
-            System.out.println("workAccepted for workObject=" + workObject) ;
+            this.acceptedAt = System.nanoTime();
+            logger.trace("Work item {} accepted", this.work);
         }
 
         /**
@@ -207,7 +878,7 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
          * @param event the event defining the work item and state
          */
         public void workRejected(WorkEvent event) {
-            log("Work item " + event.getWork() + " rejected");
+            logger.warn("Work item {} rejected: {}", this.work, event.getException());
             processCompletion(event);
         }
 
@@ -217,9 +888,8 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
          * @param event the event defining the work item and state
          */
         public void workStarted(WorkEvent event) {
-            log("Work item " + event.getWork() + " started");
-            Work workObject = event.getWork() ;
-            System.out.println("workStarted for workObject=" + workObject) ;
+            this.startedAt = System.nanoTime();
+            logger.trace("Work item {} started", this.work);
         }
 
         /**
@@ -227,7 +897,6 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
          * @param event the event defining the work item and state
          */
         public void workCompleted(WorkEvent event) {
-            log("Work item " + event.getWork() + " completed");
             processCompletion(event);
         }
 
@@ -236,28 +905,45 @@ public class CalculatorResourceAdapter implements ResourceAdapter, Serializable
          * @param event defining the work item and state
          */
         private void processCompletion(WorkEvent event) {
-            // This is all a little bit complicated than you'd imagine.  The reason
-            // is that the event object contains a Work object that appears to be
-            // ours (it's equal() to it).  However it's actually a WebLogic wrapper
-            // around our object that doesn't let us get to the original.  We
-            // can't pass this back to our caller as they may cast to our specific
-            // Work class and so we need to use the Work object we're passed to look
-            // up the one we started with.
+            // The event contains a Work object that appears to be ours (it's equal()
+            // to it), but is actually a WebLogic wrapper around our object that doesn't
+            // let us get to the original.  We can't pass this back to our caller as
+            // they may cast to our specific Work class, so we use the one this listener
+            // was set up with.  Marking the listener finished also ensures that only
+            // one completion is processed for each item.
             // Naturally BEA don't document this!
-            List<Work> workObjects = new ArrayList<Work>(runningWorkObjects.keySet()) ;
-            int workItemIndex = workObjects.indexOf(event.getWork()) ;
-            if (workItemIndex == -1) {
-                log("Warning: completion event " + event + " received for nonexistent work item") ;
+            long completedAt = System.nanoTime();
+            if (!finish()) {
+                logger.warn("Completion event {} received for nonexistent work item", event) ;
                 return ;
             }
-            Work object = workObjects.get(workItemIndex);  // NB crucial point is to use OUR object not WLS's one
-            assert object != null ;
-            long startTime = runningWorkObjects.get(object).getTime();
-            long now = System.currentTimeMillis();
-            log("Work object " + object + " completed in " + (now - startTime) + " milliseconds");
-            runningWorkObjects.remove(object);
-            if (this.callback != null) {
-                this.callback.onWorkCompletion(object, event.getType(), event.getException());
+            runningWorkObjects.remove(this.workId);
+            Work object = this.work;  // NB crucial point is to use OUR object not WLS's one
+            WorkCompletionCallback completionCallback = this.callback;
+            long submittedAt = this.submittedAt;
+            long acceptedAt = this.acceptedAt;
+            long startedAt = this.startedAt;
+            // Room is given back before the result is delivered, as a synchronous caller
+            // may issue its next request as soon as it has the result
+            releaseAdmission(this.operandBytes);
+            if (logger.isEnabled(AdapterLog.Level.TRACE)) {
+                logger.trace("Work item {} completed in {} microseconds", object,
+                        TimeUnit.NANOSECONDS.toMicros(completedAt - submittedAt));
+            }
+            // The outcome is read before the result is delivered, as the work item may be
+            // reused for another request as soon as it has been
+            CalculatorWork item = (object instanceof CalculatorWork ? (CalculatorWork)object : null);
+            boolean rejected = (event.getType() == WorkEvent.WORK_REJECTED || (item != null && item.missedStartDeadline()));
+            CalculationType type = (item == null ? null : item.getCalculationType());
+            boolean cancelled = (item != null && item.wasCancelled());
+            if (completionCallback != null) {
+                completionCallback.onWorkCompletion(object, event.getType(), event.getException());
+            }
+            if (rejected) {
+                metrics.workRejected();
+            } else {
+                metrics.workFinished(type, event.getException() != null, cancelled,
+                        submittedAt, acceptedAt, startedAt, completedAt, System.nanoTime());
             }
         }
     }
@@ -0,0 +1,63 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.jcacalculator.CalculationType;
+
+import javax.resource.spi.work.Work;
+
+/**
+ * The interface implemented by the adapter's own Work items.  As well as being
+ * runnable by the Work Manager, each item knows who asked for it to be run, so
+ * that when the Work Manager reports that it has finished, the managed connection
+ * can just ask the item to pass its outcome on to the original requester.
+ *
+ * @author Eoin Woods
+ */
+interface CalculatorWork extends Work {
+
+    /**
+     * Return the id of the request this item is running for, which is unique
+     * within the managed connection that created the item
+     * @return the request id
+     */
+    long getRequestId();
+
+    /**
+     * Return the type of calculation the item performs
+     * @return the calculation type
+     */
+    CalculationType getCalculationType();
+
+    /**
+     * Return whether the item was stopped (by release()) before it finished
+     * @return true if the item was cancelled
+     */
+    boolean wasCancelled();
+
+    /**
+     * Return the approximate size of the item's operands
+     * @return the size in bytes
+     */
+    long getOperandBytes();
+
+    /**
+     * Set the time by which the item must start running.  An item that starts
+     * later than this doesn't perform its calculation and instead fails with a
+     * START_TIMED_OUT WorkRejectedException.
+     * @param deadline the System.nanoTime() deadline, or 0 for none
+     */
+    void setStartDeadline(long deadline);
+
+    /**
+     * Return whether the item started too late to run
+     * @return true if the item missed its start deadline
+     */
+    boolean missedStartDeadline();
+
+    /**
+     * Called once the item has completed (or been rejected) to pass the outcome
+     * of the work on to the requester
+     * @param workItemException the exception reported by the Work Manager if the
+     *        item failed or was rejected, otherwise null
+     */
+    void deliverResult(Exception workItemException);
+}
@@ -0,0 +1,218 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.jcacalculator.CalculationType;
+
+import javax.resource.spi.work.WorkCompletedException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A Work item that runs a set of separate requests' calculations one after
+ * another, so that a burst of small requests gathered by the RequestCoalescer
+ * only pays the cost of one trip through the Work Manager.  Each calculation is
+ * still a CalculationWorkItem of its own, which succeeds or fails on its own and
+ * delivers its result to its own caller.
+ *
+ * @author Eoin Woods
+ */
+class CoalescedWorkItem implements CalculatorWork {
+    private long requestId;
+    private CalculationType calcType;
+    private List<CalculationWorkItem> items;
+    private long[] arrivedAt;
+    private Exception[] failures;
+    private RequestCoalescer coalescer;
+    private volatile CalculationWorkItem running;
+    private volatile boolean released;
+    private Set<WorkCompletionCallback> releasedOwners; // guarded by this item's lock
+    private long startDeadline;
+    private volatile boolean missedStartDeadline;
+
+    /**
+     * Create an initialised Coalesced Work Item, ready to run
+     * @param requestId the id of the request the item is for
+     * @param type the operator type of all of the calculations
+     * @param items the calculations to run
+     * @param arrivedAt the System.nanoTime() at which each calculation was requested
+     * @param coalescer the coalescer that gathered the calculations, which keeps their statistics
+     */
+    public CoalescedWorkItem(long requestId, CalculationType type, List<CalculationWorkItem> items,
+                             long[] arrivedAt, RequestCoalescer coalescer) {
+        this.requestId = requestId;
+        this.calcType = type;
+        this.items = items;
+        this.arrivedAt = arrivedAt;
+        this.failures = new Exception[items.size()];
+        this.coalescer = coalescer;
+        this.released = false;
+    }
+
+    /**
+     * Implementation of Work#run(), which is called by the Work Manager to
+     * run this piece of processing.  If the item is released part way through,
+     * the calculations which haven't been run are recorded as failures.
+     */
+    public void run() {
+        if (this.startDeadline != 0 && System.nanoTime() - this.startDeadline > 0) {
+            this.missedStartDeadline = true;
+            return;
+        }
+        for (int i = 0; i < this.items.size(); i++) {
+            CalculationWorkItem item = this.items.get(i);
+            this.running = item;
+            if (isReleased(item)) {
+                this.failures[i] = new IllegalStateException("Coalesced batch cancelled before calculation ran");
+                continue;
+            }
+            try {
+                item.run();
+            } catch (RuntimeException e) {
+                // Reported just as the Work Manager would report it for a lone item
+                this.failures[i] = new WorkCompletedException(e);
+                continue;
+            }
+            // A release that arrives after the check above but before the calculation
+            // starts is lost, as starting a calculation clears its cancellation, so the
+            // check is made again once it has finished
+            if (isReleased(item)) {
+                item.markReleased();
+            }
+        }
+        this.running = null;
+    }
+
+    /**
+     * Implementation of Work#release() which is called by the Work Manager to
+     * indicate that the processing should complete as soon as possible.
+     */
+    public void release() {
+        this.released = true;
+        CalculationWorkItem item = this.running;
+        if (item != null) {
+            item.release();
+        }
+    }
+
+    /**
+     * Release just the calculations in the batch that were requested through one
+     * managed connection, for example because it is being destroyed, leaving the
+     * rest of the batch to run
+     * @param owner the managed connection
+     * @return true if any of the batch's calculations belong to the connection
+     */
+    public boolean releaseFor(WorkCompletionCallback owner) {
+        boolean owned = false;
+        for (CalculationWorkItem item : this.items) {
+            if (item.getOwner() == owner) {
+                owned = true;
+                break;
+            }
+        }
+        if (!owned) {
+            return false;
+        }
+        synchronized (this) {
+            if (this.releasedOwners == null) {
+                this.releasedOwners = new HashSet<WorkCompletionCallback>();
+            }
+            this.releasedOwners.add(owner);
+        }
+        CalculationWorkItem item = this.running;
+        if (item != null && item.getOwner() == owner) {
+            item.release();
+        }
+        return true;
+    }
+
+    /**
+     * Private helper to check whether a calculation in the batch has been released
+     * @param item the calculation
+     * @return true if the whole batch or the calculation's connection was released
+     */
+    private synchronized boolean isReleased(CalculationWorkItem item) {
+        return this.released || (this.releasedOwners != null && this.releasedOwners.contains(item.getOwner()));
+    }
+
+    /**
+     * Implementation of CalculatorWork#deliverResult(), passes each calculation's
+     * result (or failure) to its own caller.  If the whole item failed, every
+     * calculation fails with the same exception.
+     * @param workItemException the exception the work item failed with or null
+     */
+    public void deliverResult(Exception workItemException) {
+        if (workItemException == null && this.missedStartDeadline) {
+            workItemException = CalculationWorkItem.startDeadlineMissed();
+        }
+        for (int i = 0; i < this.items.size(); i++) {
+            Exception failure = (workItemException != null ? workItemException : this.failures[i]);
+            try {
+                this.items.get(i).deliverResult(failure);
+            } catch (RuntimeException e) {
+                this.coalescer.callbackFailed(this.items.get(i), e);
+            }
+            this.coalescer.recordDelivery(this.arrivedAt[i]);
+        }
+    }
+
+    /**
+     * Implementation of CalculatorWork#getRequestId()
+     * @return the id of the request this item is for
+     */
+    public long getRequestId() {
+        return this.requestId;
+    }
+
+    /**
+     * Implementation of CalculatorWork#getOperandBytes()
+     * @return the approximate size of the operands of all of the item's calculations
+     */
+    public long getOperandBytes() {
+        long bytes = 0;
+        for (CalculationWorkItem item : this.items) {
+            bytes += item.getOperandBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Implementation of CalculatorWork#setStartDeadline()
+     * @param deadline the System.nanoTime() the item must start by, or 0 for none
+     */
+    public void setStartDeadline(long deadline) {
+        this.startDeadline = deadline;
+    }
+
+    /**
+     * Implementation of CalculatorWork#missedStartDeadline()
+     * @return true if the item started too late to run
+     */
+    public boolean missedStartDeadline() {
+        return this.missedStartDeadline;
+    }
+
+    /**
+     * Implementation of CalculatorWork#getCalculationType()
+     * @return the type of calculation this item performs
+     */
+    public CalculationType getCalculationType() {
+        return this.calcType;
+    }
+
+    /**
+     * Implementation of CalculatorWork#wasCancelled()
+     * @return true if the item was released before it finished
+     */
+    public boolean wasCancelled() {
+        return this.released;
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a human readable representation of the object
+     */
+    public String toString() {
+        return "CoalescedWorkItem[id=" + this.hashCode() + " requestId=" + this.requestId + " calcType=" + this.calcType +
+                " BatchSize=" + this.items.size() + "]";
+    }
+}
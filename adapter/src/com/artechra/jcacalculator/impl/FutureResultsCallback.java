@@ -0,0 +1,41 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.jcacalculator.ResultsCallback;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A results callback that completes a CompletableFuture, used to provide the
+ * composable asynchronous interface on top of the adapter's callback mechanism.
+ * The future is completed on whichever thread delivers the result (normally the
+ * Work Manager thread that ran the calculation) so no extra thread is involved.
+ *
+ * @author Eoin Woods
+ */
+class FutureResultsCallback implements ResultsCallback {
+    private final CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+    /**
+     * Implementation of ResultsCallback#onSuccessfulCalculation()
+     * @param result the result of the calculation
+     */
+    public void onSuccessfulCalculation(long result) {
+        this.future.complete(result);
+    }
+
+    /**
+     * Implementation of ResultsCallback#onFailedCalculation()
+     * @param failure the exception that caused the calculation to fail
+     */
+    public void onFailedCalculation(Exception failure) {
+        this.future.completeExceptionally(failure);
+    }
+
+    /**
+     * Return the future that this callback completes
+     * @return the future
+     */
+    public CompletableFuture<Long> getFuture() {
+        return this.future;
+    }
+}
@@ -0,0 +1,92 @@
+package com.artechra.jcacalculator.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a calculation is small enough to run directly on the calling
+ * thread, where handing it to the Work Manager and waiting for it to come back
+ * would cost far more than the calculation itself.
+ * <p/>
+ * The decision is based on an estimate of the cost per operand, kept as a moving
+ * average of the service times of calculations as they run (whichever thread
+ * they run on), so the cut-off follows the real cost of calculating on this
+ * machine and load.  Until enough calculations have been seen to make an
+ * estimate, everything goes to the Work Manager.
+ *
+ * @author Eoin Woods
+ */
+class InlineDispatchPolicy {
+    // Calculations seen before the estimate is trusted
+    static final int WARMUP_SAMPLES = 32;
+    // The estimate is held in fixed point, 1/256ths of a nanosecond per operand,
+    // as cheap operations cost well under a nanosecond per operand
+    private static final int SCALE_SHIFT = 8;
+    // Each new sample moves the average 1/8th of the way towards it
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final long maxServiceNanos;
+    private final AtomicLong scaledNanosPerOperand = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+    private volatile int inlineOperandLimit = -1;
+
+    /**
+     * Create a dispatch policy
+     * @param maxServiceMicros the longest a calculation is expected to take for it
+     *        to be run on the calling thread
+     */
+    public InlineDispatchPolicy(long maxServiceMicros) {
+        this.maxServiceNanos = TimeUnit.MICROSECONDS.toNanos(maxServiceMicros);
+    }
+
+    /**
+     * Decide whether a calculation should run on the calling thread
+     * @param operandCount the number of operands, or a negative number if it isn't
+     *        known in advance (as for streamed operands, which never run inline)
+     * @return true to run the calculation inline, false to use the Work Manager
+     */
+    public boolean shouldRunInline(int operandCount) {
+        return operandCount >= 0 && operandCount <= this.inlineOperandLimit;
+    }
+
+    /**
+     * Record how long a calculation took to run, refining the estimate of the
+     * cost per operand and so the largest calculation that runs inline
+     * @param operandCount the number of operands calculated
+     * @param serviceNanos the time the calculation took
+     */
+    public void recordServiceTime(int operandCount, long serviceNanos) {
+        if (operandCount <= 0 || serviceNanos < 0) {
+            return;
+        }
+        long sample = (serviceNanos << SCALE_SHIFT) / operandCount;
+        long seen = this.samples.incrementAndGet();
+        long estimate;
+        long current;
+        do {
+            current = this.scaledNanosPerOperand.get();
+            estimate = (seen == 1 ? sample : current + ((sample - current) >> SMOOTHING_SHIFT));
+        } while (!this.scaledNanosPerOperand.compareAndSet(current, estimate));
+        if (seen >= WARMUP_SAMPLES) {
+            long limit = (this.maxServiceNanos << SCALE_SHIFT) / Math.max(1, estimate);
+            this.inlineOperandLimit = (int) Math.min(Integer.MAX_VALUE, limit);
+        }
+    }
+
+    /**
+     * @return the largest number of operands that currently runs inline
+     */
+    public int getInlineOperandLimit() {
+        return this.inlineOperandLimit;
+    }
+
+    /**
+     * Return a string representation of the object
+     * @return the string representation
+     */
+    public String toString() {
+        return "InlineDispatchPolicy[maxServiceNanos=" + this.maxServiceNanos + " nanosPerOperand=" +
+                (this.scaledNanosPerOperand.get() >> SCALE_SHIFT) + " inlineOperandLimit=" +
+                this.inlineOperandLimit + "]";
+    }
+}
@@ -0,0 +1,145 @@
+package com.artechra.jcacalculator.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, in the style of an HDR histogram.
+ * Values are counted in buckets whose width grows with the value: each power
+ * of two range is split into 32 equal buckets, so any recorded value is known
+ * to within about 3% however large it is, with a fixed and modest amount of
+ * memory.  Recording is lock-free and allocation-free so it can be done on the
+ * adapter's request paths; reads see a slightly fuzzy snapshot if values are
+ * being recorded at the same time, which is fine for monitoring.
+ *
+ * @author Eoin Woods
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Record a duration.  Negative durations (which a badly behaved clock
+     * could produce) are recorded as zero.
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = (nanos < 0 ? 0 : nanos);
+        this.counts.incrementAndGet(bucketFor(value));
+        this.totalCount.incrementAndGet();
+        this.totalNanos.addAndGet(value);
+        long max = this.maxNanos.get();
+        while (value > max && !this.maxNanos.compareAndSet(max, value)) {
+            max = this.maxNanos.get();
+        }
+    }
+
+    /**
+     * Return the number of durations recorded
+     * @return the count
+     */
+    public long getCount() {
+        return this.totalCount.get();
+    }
+
+    /**
+     * Return the largest duration recorded
+     * @return the maximum in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getMaxNanos() {
+        return this.maxNanos.get();
+    }
+
+    /**
+     * Return the mean of the durations recorded
+     * @return the mean in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getMeanNanos() {
+        long count = this.totalCount.get();
+        return (count == 0 ? 0 : this.totalNanos.get() / count);
+    }
+
+    /**
+     * Return the duration that the given percentage of recorded durations
+     * were no longer than, to within the precision of the histogram
+     * @param percentile the percentile wanted, from 0 to 100
+     * @return the duration in nanoseconds, or 0 if nothing has been recorded
+     * @throws IllegalArgumentException if the percentile is out of range
+     */
+    public long getPercentileNanos(double percentile) throws IllegalArgumentException {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, not " + percentile);
+        }
+        long count = this.totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long)Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += this.counts.get(bucket);
+            if (seen >= wanted) {
+                return Math.min(highestValueIn(bucket), this.maxNanos.get());
+            }
+        }
+        return this.maxNanos.get();
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a summary of the histogram, with durations in microseconds
+     */
+    public String toString() {
+        return "count=" + getCount() +
+                " mean=" + micros(getMeanNanos()) +
+                " p50=" + micros(getPercentileNanos(50)) +
+                " p90=" + micros(getPercentileNanos(90)) +
+                " p99=" + micros(getPercentileNanos(99)) +
+                " p99.9=" + micros(getPercentileNanos(99.9)) +
+                " max=" + micros(getMaxNanos());
+    }
+
+    /**
+     * Private helper to find the bucket a value is counted in
+     * @param value the non-negative value
+     * @return the bucket index
+     */
+    private static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Private helper to find the largest value counted in a bucket
+     * @param bucket the bucket index
+     * @return the largest value that falls in the bucket
+     */
+    private static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Private helper to format nanoseconds as microseconds
+     * @param nanos the duration in nanoseconds
+     * @return the duration in microseconds, to one decimal place, with units
+     */
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "." + ((nanos % 1000) / 100) + "us";
+    }
+}
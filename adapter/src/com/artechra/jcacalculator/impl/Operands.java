@@ -0,0 +1,221 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.calculator.CancellableCalculator;
+import com.artechra.calculator.Operation;
+
+import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The operands of a single calculation, in whichever form the client supplied
+ * them.  This lets the connection, managed connection and work item handle
+ * lists, primitive arrays, buffers, iterators and streams in the same way, with
+ * each form passed to the matching calculator method so that primitive operands
+ * are never boxed.
+ *
+ * @author Eoin Woods
+ */
+abstract class Operands {
+    // The size of operands supplied as iterators or streams, which isn't known in advance
+    static final int UNKNOWN_SIZE = -1;
+
+    /**
+     * Run the calculation on these operands
+     * @param calculator the calculator to use
+     * @param op the operation to perform
+     * @return the result (meaningless if the calculator was cancelled)
+     * @throws IllegalArgumentException if there are no operands
+     */
+    abstract long calculateWith(CancellableCalculator calculator, Operation op) throws IllegalArgumentException;
+
+    /**
+     * Return the number of operands
+     * @return the operand count, or UNKNOWN_SIZE if the operands are streamed
+     */
+    abstract int size();
+
+    /**
+     * Return the approximate size of the operands, used to limit the amount of
+     * operand data the adapter has in progress
+     * @return the size in bytes, or 0 if the operands are streamed
+     */
+    long byteSize() {
+        int size = size();
+        return (size < 0 ? 0 : size * 4L);
+    }
+
+    /**
+     * Return a copy of the operands as longs, used where they need to be kept
+     * (such as in a cache key)
+     * @return the copy, or null if the operands are streamed and can't be copied
+     */
+    long[] toLongArray() {
+        return null;
+    }
+
+    /**
+     * Wrap a list of operands
+     * @param operands the operands
+     * @return the wrapped operands
+     */
+    static Operands of(final List<Integer> operands) {
+        return new Operands() {
+            long calculateWith(CancellableCalculator calculator, Operation op) {
+                Long result = calculator.calculate(op, operands);
+                if (result == null && !calculator.wasCancelled()) {
+                    throw new IllegalArgumentException("At least one operand must be supplied");
+                }
+                return result == null ? 0 : result;
+            }
+
+            int size() {
+                return operands.size();
+            }
+
+            long[] toLongArray() {
+                long[] copy = new long[operands.size()];
+                int idx = 0;
+                for (int operand : operands) {
+                    copy[idx++] = operand;
+                }
+                return copy;
+            }
+
+            public String toString() {
+                return operands.toString();
+            }
+        };
+    }
+
+    /**
+     * Wrap an array of int operands
+     * @param operands the operands
+     * @return the wrapped operands
+     */
+    static Operands of(final int[] operands) {
+        return new Operands() {
+            long calculateWith(CancellableCalculator calculator, Operation op) {
+                return calculator.calculate(op, operands);
+            }
+
+            int size() {
+                return operands.length;
+            }
+
+            long[] toLongArray() {
+                long[] copy = new long[operands.length];
+                for (int idx = 0; idx < operands.length; idx++) {
+                    copy[idx] = operands[idx];
+                }
+                return copy;
+            }
+
+            public String toString() {
+                return "int[" + operands.length + "]";
+            }
+        };
+    }
+
+    /**
+     * Wrap an array of long operands
+     * @param operands the operands
+     * @return the wrapped operands
+     */
+    static Operands of(final long[] operands) {
+        return new Operands() {
+            long calculateWith(CancellableCalculator calculator, Operation op) {
+                return calculator.calculate(op, operands);
+            }
+
+            int size() {
+                return operands.length;
+            }
+
+            long byteSize() {
+                return operands.length * 8L;
+            }
+
+            long[] toLongArray() {
+                return operands.clone();
+            }
+
+            public String toString() {
+                return "long[" + operands.length + "]";
+            }
+        };
+    }
+
+    /**
+     * Wrap the remaining contents of an int buffer
+     * @param operands the operands
+     * @return the wrapped operands
+     */
+    static Operands of(final IntBuffer operands) {
+        return new Operands() {
+            long calculateWith(CancellableCalculator calculator, Operation op) {
+                return calculator.calculate(op, operands);
+            }
+
+            int size() {
+                return operands.remaining();
+            }
+
+            long[] toLongArray() {
+                long[] copy = new long[operands.remaining()];
+                int start = operands.position();
+                for (int idx = 0; idx < copy.length; idx++) {
+                    copy[idx] = operands.get(start + idx);
+                }
+                return copy;
+            }
+
+            public String toString() {
+                return "IntBuffer[" + operands.remaining() + "]";
+            }
+        };
+    }
+
+    /**
+     * Wrap an iterator over the operands, which is consumed as the calculation runs
+     * @param operands the operands
+     * @return the wrapped operands
+     */
+    static Operands of(final Iterator<Integer> operands) {
+        return new Operands() {
+            long calculateWith(CancellableCalculator calculator, Operation op) {
+                return calculator.calculate(op, operands);
+            }
+
+            int size() {
+                return UNKNOWN_SIZE;
+            }
+
+            public String toString() {
+                return "Iterator[" + operands + "]";
+            }
+        };
+    }
+
+    /**
+     * Wrap a stream of binary operands, which is read as the calculation runs
+     * @param operands the operands
+     * @return the wrapped operands
+     */
+    static Operands of(final InputStream operands) {
+        return new Operands() {
+            long calculateWith(CancellableCalculator calculator, Operation op) {
+                return calculator.calculate(op, operands);
+            }
+
+            int size() {
+                return UNKNOWN_SIZE;
+            }
+
+            public String toString() {
+                return "InputStream[" + operands + "]";
+            }
+        };
+    }
+}
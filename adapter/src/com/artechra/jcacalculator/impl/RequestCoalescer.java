@@ -0,0 +1,395 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.jcacalculator.CalculationType;
+
+import javax.resource.ResourceException;
+import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkException;
+import javax.resource.spi.work.WorkManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gathers small calculation requests that arrive close together into batches,
+ * so that a burst of requests makes a few trips through the Work Manager rather
+ * than one each.  A batch is sent when it reaches the maximum batch size or when
+ * its oldest request has waited for the coalescing window, whichever is first;
+ * there is a separate batch for each calculation type.
+ * <p/>
+ * Requests are coalesced after they have been turned into work items, so that a
+ * coalesced calculation uses the result cache and single flight sharing just as
+ * a lone one would, and delivers its own result to its own caller.  As the
+ * caller has returned by the time a batch is sent, a batch that can't be run
+ * fails each of its requests through their callbacks.  Only requests whose
+ * callers have returned are coalesced; a caller blocked in
+ * performOperationWhileIWait() would have to wait for the window as well, which
+ * is worse for it than the trip through the Work Manager that is saved.
+ * <p/>
+ * Each request's work item records the managed connection it came through, so
+ * that when a connection is destroyed its requests can be released without
+ * stopping the rest of their batch.
+ * <p/>
+ * The window is timed by a long-lived piece of work run by the container's Work
+ * Manager, as the container's timers can't time windows of less than a
+ * millisecond.  The work sends batches without waiting for room in the adapter,
+ * so a saturated adapter fails a batch at once rather than holding up the
+ * windows of the other calculation types.
+ *
+ * @author Eoin Woods
+ */
+class RequestCoalescer implements WorkCompletionCallback {
+    private final CalculatorResourceAdapter adapter;
+    private final AdapterLog log;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final int maxOperands;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchOpened = this.lock.newCondition();
+    private final Batch[] open = new Batch[CalculationType.values().length];
+    private Flusher flusher;
+    private volatile boolean running;
+
+    private final AtomicLong nextBatchId = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * Create a request coalescer
+     * @param adapter the resource adapter to run batches with
+     * @param windowMicros the longest a request waits for others to join its batch
+     * @param maxBatch the most requests in a batch
+     * @param maxOperands the most operands a request can have and still be coalesced
+     * @throws IllegalArgumentException if the window or batch size is not positive
+     */
+    public RequestCoalescer(CalculatorResourceAdapter adapter, long windowMicros, int maxBatch, int maxOperands)
+            throws IllegalArgumentException {
+        if (windowMicros <= 0 || maxBatch <= 0) {
+            throw new IllegalArgumentException("Coalescing window and batch size must be positive (were " +
+                    windowMicros + " and " + maxBatch + ")");
+        }
+        this.adapter = adapter;
+        this.log = adapter.getLog();
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+        this.maxOperands = maxOperands;
+    }
+
+    /**
+     * Start the work that sends batches when their window closes, which runs until
+     * the coalescer is stopped
+     * @param workManager the Work Manager to run the work with
+     * @throws WorkException if the Work Manager won't run the work
+     */
+    public synchronized void start(WorkManager workManager) throws WorkException {
+        if (this.flusher != null) {
+            return;
+        }
+        Flusher starting = new Flusher();
+        this.running = true;
+        try {
+            workManager.scheduleWork(starting);
+        } catch (WorkException e) {
+            this.running = false;
+            throw e;
+        }
+        this.flusher = starting;
+    }
+
+    /**
+     * Stop the background work, sending any batches that are still open
+     */
+    public synchronized void stop() {
+        if (this.flusher == null) {
+            return;
+        }
+        stopFlushing();
+        try {
+            this.flusher.awaitFinished(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.flusher = null;
+        for (CalculationType type : CalculationType.values()) {
+            Batch batch = takeBatch(type);
+            if (batch != null) {
+                send(batch, false);
+            }
+        }
+    }
+
+    /**
+     * Decide whether a request is small enough to be coalesced
+     * @param operandCount the number of operands, or a negative number if it isn't known
+     * @return true if the request can be added to a batch
+     */
+    public boolean accepts(int operandCount) {
+        return this.running && operandCount >= 0 && operandCount <= this.maxOperands;
+    }
+
+    /**
+     * Add a request's work item to the open batch for its calculation type, sending
+     * the batch if this fills it
+     * @param item the work item to add
+     */
+    public void add(CalculationWorkItem item) {
+        int slot = item.getCalculationType().ordinal();
+        long now = System.nanoTime();
+        Batch full = null;
+        this.lock.lock();
+        try {
+            Batch batch = this.open[slot];
+            if (batch == null) {
+                batch = new Batch(item.getCalculationType(), now, this.maxBatch);
+                this.open[slot] = batch;
+                this.batchOpened.signal();
+            }
+            batch.add(item, now);
+            // Once stopped there is nothing to send open batches, so send at once
+            if (batch.items.size() >= this.maxBatch || !this.running) {
+                this.open[slot] = null;
+                full = batch;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        this.requests.incrementAndGet();
+        if (full != null) {
+            // Sent on the caller's thread, which can wait for room as a lone request would
+            send(full, true);
+        }
+    }
+
+    /**
+     * Implementation of WorkCompletionCallback#onWorkCompletion(), called by the
+     * resource adapter when a batch's work item completes
+     * @param completedWorkItem the batch's work item
+     * @param status the WorkEvent status indicator (WORK_COMPLETED, WORK_REJECTED)
+     * @param workItemException the exception that the work item threw, if it failed, otherwise null
+     */
+    public void onWorkCompletion(Work completedWorkItem, int status, Exception workItemException) {
+        ((CoalescedWorkItem) completedWorkItem).deliverResult(workItemException);
+    }
+
+    /**
+     * Record that one of a batch's requests has had its result delivered
+     * @param arrivedAt the System.nanoTime() at which the request arrived
+     */
+    void recordDelivery(long arrivedAt) {
+        this.latencies.record(System.nanoTime() - arrivedAt);
+    }
+
+    /**
+     * Report a caller's callback that failed while a batch's results were delivered
+     * @param item the work item whose callback failed
+     * @param failure the exception the callback threw
+     */
+    void callbackFailed(CalculationWorkItem item, RuntimeException failure) {
+        this.log.warn("Coalesced work item {} callback failed: {}", item, failure);
+    }
+
+    /**
+     * @return the number of requests that have been coalesced
+     */
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * @return the number of batches that have been sent
+     */
+    public long getBatchCount() {
+        return this.batches.get();
+    }
+
+    /**
+     * @return the distribution of the number of requests per batch
+     */
+    LatencyHistogram getBatchSizes() {
+        return this.batchSizes;
+    }
+
+    /**
+     * @return the distribution of the time requests wait for their batch to be sent
+     */
+    LatencyHistogram getWaitTimes() {
+        return this.waitTimes;
+    }
+
+    /**
+     * @return the distribution of the time from each request arriving to its result
+     *         being delivered
+     */
+    LatencyHistogram getLatencies() {
+        return this.latencies;
+    }
+
+    /**
+     * Return a string representation of the object
+     * @return the string representation
+     */
+    public String toString() {
+        return "RequestCoalescer[windowNanos=" + this.windowNanos + " maxBatch=" + this.maxBatch +
+                " maxOperands=" + this.maxOperands + " requests=" + getRequestCount() + " batches=" + getBatchCount() +
+                " meanBatchSize=" + this.batchSizes.getMeanNanos() + "]";
+    }
+
+    /**
+     * Private helper, run by the background work, which waits for each open batch's
+     * window to close and then sends it.  Batches are sent without waiting for room
+     * in the adapter, as a wait here would hold up every other batch's window.
+     */
+    private void flushExpiredBatches() {
+        while (this.running) {
+            List<Batch> expired = new ArrayList<Batch>();
+            this.lock.lock();
+            try {
+                long now = System.nanoTime();
+                long nextDeadline = Long.MAX_VALUE;
+                for (int slot = 0; slot < this.open.length; slot++) {
+                    Batch batch = this.open[slot];
+                    if (batch == null) {
+                        continue;
+                    }
+                    long remaining = batch.openedAt + this.windowNanos - now;
+                    if (remaining <= 0) {
+                        this.open[slot] = null;
+                        expired.add(batch);
+                    } else {
+                        nextDeadline = Math.min(nextDeadline, remaining);
+                    }
+                }
+                if (expired.isEmpty()) {
+                    if (nextDeadline == Long.MAX_VALUE) {
+                        this.batchOpened.await();
+                    } else {
+                        this.batchOpened.awaitNanos(nextDeadline);
+                    }
+                }
+            } catch (InterruptedException e) {
+                this.running = false;
+            } finally {
+                this.lock.unlock();
+            }
+            for (Batch batch : expired) {
+                send(batch, false);
+            }
+        }
+    }
+
+    /**
+     * Private helper to tell the background work to finish
+     */
+    private void stopFlushing() {
+        this.running = false;
+        this.lock.lock();
+        try {
+            this.batchOpened.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Private helper to remove the open batch for a calculation type
+     * @param type the calculation type
+     * @return the batch, or null if none is open
+     */
+    private Batch takeBatch(CalculationType type) {
+        this.lock.lock();
+        try {
+            Batch batch = this.open[type.ordinal()];
+            this.open[type.ordinal()] = null;
+            return batch;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Private helper to run a batch as a single work item, failing all of its
+     * requests if it can't be run
+     * @param batch the batch to send
+     * @param mayWait false to fail the batch at once if the adapter is saturated
+     */
+    private void send(Batch batch, boolean mayWait) {
+        long now = System.nanoTime();
+        for (int i = 0; i < batch.items.size(); i++) {
+            this.waitTimes.record(now - batch.arrivedAt[i]);
+        }
+        this.batches.incrementAndGet();
+        this.batchSizes.record(batch.items.size());
+        CoalescedWorkItem work = new CoalescedWorkItem(this.nextBatchId.incrementAndGet(), batch.type,
+                batch.items, batch.arrivedAt, this);
+        try {
+            this.adapter.runWorkObject(work, this, mayWait);
+        } catch (ResourceException e) {
+            this.log.warn("Could not run coalesced batch {}: {}", work, e);
+            work.deliverResult(e);
+        } catch (RuntimeException e) {
+            this.log.warn("Could not run coalesced batch {}: {}", work, e);
+            work.deliverResult(e);
+        }
+    }
+
+    /**
+     * The long-lived work that sends batches when their window closes
+     */
+    private class Flusher implements Work {
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        public void run() {
+            try {
+                flushExpiredBatches();
+            } finally {
+                this.finished.countDown();
+            }
+        }
+
+        /**
+         * Called by the Work Manager to ask the work to finish
+         */
+        public void release() {
+            stopFlushing();
+        }
+
+        /**
+         * Wait for the work to finish
+         * @param timeoutMsec the longest time to wait
+         * @throws InterruptedException if the wait is interrupted
+         */
+        void awaitFinished(long timeoutMsec) throws InterruptedException {
+            this.finished.await(timeoutMsec, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The requests gathered for one calculation type while its window is open
+     */
+    private static class Batch {
+        final CalculationType type;
+        final long openedAt;
+        final List<CalculationWorkItem> items;
+        final long[] arrivedAt;
+
+        Batch(CalculationType type, long openedAt, int capacity) {
+            this.type = type;
+            this.openedAt = openedAt;
+            this.items = new ArrayList<CalculationWorkItem>(capacity);
+            this.arrivedAt = new long[capacity];
+        }
+
+        void add(CalculationWorkItem item, long now) {
+            this.arrivedAt[this.items.size()] = now;
+            this.items.add(item);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.artechra.jcacalculator.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of calculation results, keyed on the calculation type and
+ * the operands, which allows the adapter to answer repeated requests without
+ * running them again.
+ * <p/>
+ * Entries are evicted in least recently used order once either the number of
+ * entries or their total weight (the number of operands held in the keys) goes
+ * over its limit, and entries older than the time to live are discarded when
+ * they are next looked up.
+ *
+ * @author Eoin Woods
+ */
+class ResultCache {
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttlNanos;
+    private final LinkedHashMap<CalculationKey, Entry> entries;
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create an empty cache
+     * @param maxEntries the most results to hold
+     * @param maxWeight the most operands to hold across all of the keys
+     * @param ttlMsec how long a result can be used for, or zero or less for no limit
+     */
+    ResultCache(int maxEntries, long maxWeight, long ttlMsec) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttlNanos = (ttlMsec > 0 ? ttlMsec * 1000000L : 0);
+        this.entries = new LinkedHashMap<CalculationKey, Entry>(16, 0.75f, true);
+        this.weight = 0;
+    }
+
+    /**
+     * Look up a result
+     * @param key the key for the calculation
+     * @return the cached result or null if there isn't one
+     */
+    Long get(CalculationKey key) {
+        Long result = null;
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry != null) {
+                if (this.ttlNanos > 0 && System.nanoTime() - entry.createdNanos > this.ttlNanos) {
+                    remove(key);
+                } else {
+                    result = entry.result;
+                }
+            }
+        }
+        (result != null ? this.hits : this.misses).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Add a result to the cache, evicting the least recently used entries if
+     * the cache is then over its limits.  Results whose key on its own is over
+     * the weight limit aren't added.
+     * @param key the key for the calculation
+     * @param result the result of the calculation
+     */
+    synchronized void put(CalculationKey key, long result) {
+        if (key.weight() > this.maxWeight) {
+            return;
+        }
+        Entry previous = this.entries.put(key, new Entry(result, System.nanoTime()));
+        if (previous == null) {
+            this.weight += key.weight();
+        }
+        Iterator<Map.Entry<CalculationKey, Entry>> eldest = this.entries.entrySet().iterator();
+        while ((this.entries.size() > this.maxEntries || this.weight > this.maxWeight) && eldest.hasNext()) {
+            CalculationKey evicted = eldest.next().getKey();
+            eldest.remove();
+            this.weight -= evicted.weight();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return the most operands that the cache will hold
+     * @return the weight limit
+     */
+    long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    /**
+     * Return the number of lookups that found a result
+     * @return the hit count
+     */
+    long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Return the number of lookups that didn't find a result
+     * @return the miss count
+     */
+    long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Return the number of entries evicted to keep the cache within its limits
+     * @return the eviction count
+     */
+    long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Return the number of results in the cache
+     * @return the entry count
+     */
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Override of java.lang.Object#toString()
+     * @return a human readable description of the cache and its statistics
+     */
+    public String toString() {
+        return "ResultCache[size=" + size() + " hits=" + getHitCount() + " misses=" + getMissCount() +
+                " evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Private helper to remove an entry, keeping the weight up to date.  Must be
+     * called with the cache's lock held.
+     * @param key the key of the entry to remove
+     */
+    private void remove(CalculationKey key) {
+        if (this.entries.remove(key) != null) {
+            this.weight -= key.weight();
+        }
+    }
+
+    /**
+     * A cached result and the time it was calculated
+     */
+    private static class Entry {
+        final long result;
+        final long createdNanos;
+
+        Entry(long result, long createdNanos) {
+            this.result = result;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
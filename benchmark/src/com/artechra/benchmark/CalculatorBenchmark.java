@@ -0,0 +1,73 @@
+package com.artechra.benchmark;
+
+import com.artechra.calculator.CancellableCalculator;
+import com.artechra.calculator.Operation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the calculator on its own, across a range of operand counts and
+ * both operations, for both the List and the primitive array forms of the
+ * operands.
+ *
+ * @author Eoin Woods
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalculatorBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int operandCount;
+
+    @Param({"ADDITION", "MULTIPLICATION"})
+    public Operation operation;
+
+    private CancellableCalculator calculator;
+    private List<Integer> operandList;
+    private int[] operandArray;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.calculator = new CancellableCalculator();
+        this.operandList = new ArrayList<Integer>(this.operandCount);
+        this.operandArray = new int[this.operandCount];
+        // products of anything but 1s and -1s soon overflow to zero, which would
+        // make the multiplication results meaningless
+        Random random = new Random(42);
+        for (int i = 0; i < this.operandCount; i++) {
+            int operand = (this.operation == Operation.MULTIPLICATION ? (random.nextBoolean() ? 1 : -1) :
+                    random.nextInt(1000));
+            this.operandList.add(operand);
+            this.operandArray[i] = operand;
+        }
+    }
+
+    @Benchmark
+    public Long calculateList() {
+        return this.calculator.calculate(this.operation, this.operandList);
+    }
+
+    @Benchmark
+    public long calculateArray() {
+        return this.calculator.calculate(this.operation, this.operandArray);
+    }
+}
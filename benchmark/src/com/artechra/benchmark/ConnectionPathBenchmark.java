@@ -0,0 +1,108 @@
+package com.artechra.benchmark;
+
+import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.CalculatorConnection;
+import com.artechra.jcacalculator.CalculatorConnectionFactory;
+import com.artechra.jcacalculator.embedded.EmbeddedCalculatorRuntime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the whole client path through the adapter: getting a connection
+ * from the connection factory, performing a synchronous operation and closing
+ * the connection again, in the adapter's embedded runtime.  The path is
+ * measured with several numbers of client threads so that contention in
+ * the adapter shows up in the results.
+ *
+ * @author Eoin Woods
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionPathBenchmark {
+
+    @Param({"ADD", "MULTIPLY"})
+    public String calculationType;
+
+    @Param({"10", "1000"})
+    public int operandCount;
+
+    @Param({"8"})
+    public int workManagerThreads;
+
+    private EmbeddedCalculatorRuntime runtime;
+    private CalculatorConnectionFactory connectionFactory;
+    private CalculationType type;
+    private List<Integer> operands;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.runtime = new EmbeddedCalculatorRuntime(this.workManagerThreads, 0);
+        // enough connections for the largest number of client threads below
+        this.runtime.getManagedConnectionFactory().setMaxConnections(64);
+        this.runtime.start();
+        this.connectionFactory = this.runtime.getConnectionFactory();
+        this.type = CalculationType.valueOf(this.calculationType);
+        this.operands = new ArrayList<Integer>(this.operandCount);
+        for (int i = 0; i < this.operandCount; i++) {
+            this.operands.add(i % 2 == 0 ? 1 : -1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.runtime.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Long oneThread() throws Exception {
+        return getCalculateAndClose();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Long fourThreads() throws Exception {
+        return getCalculateAndClose();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Long sixteenThreads() throws Exception {
+        return getCalculateAndClose();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Long sixtyFourThreads() throws Exception {
+        return getCalculateAndClose();
+    }
+
+    private Long getCalculateAndClose() throws Exception {
+        CalculatorConnection conn = this.connectionFactory.getConnection(this.type);
+        try {
+            return conn.performOperationWhileIWait(this.operands);
+        } finally {
+            conn.close();
+        }
+    }
+}
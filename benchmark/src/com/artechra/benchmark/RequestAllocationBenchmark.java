@@ -0,0 +1,66 @@
+package com.artechra.benchmark;
+
+import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.CalculatorConnection;
+import com.artechra.jcacalculator.embedded.EmbeddedCalculatorRuntime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the steady state cost of a small synchronous request on a connection
+ * that is held open, run through the Work Manager and inline on the calling
+ * thread.  It is meant to be run with JMH's GC profiler (-prof gc), whose
+ * gc.alloc.rate.norm figure shows the bytes allocated per request.
+ *
+ * @author Eoin Woods
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestAllocationBenchmark {
+
+    // 0 sends every request to the Work Manager, more runs small ones inline
+    @Param({"0", "50"})
+    public long inlineMaxServiceMicros;
+
+    private EmbeddedCalculatorRuntime runtime;
+    private CalculatorConnection connection;
+    private int[] operands;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.runtime = new EmbeddedCalculatorRuntime(2, 0);
+        this.runtime.getResourceAdapter().setInlineMaxServiceMicros(this.inlineMaxServiceMicros);
+        this.runtime.getResourceAdapter().setLogLevel("WARN");
+        this.runtime.start();
+        this.connection = this.runtime.getConnectionFactory().getConnection(CalculationType.ADD);
+        this.operands = new int[] {1, 2, 3, 4, 5, 6, 7, 8};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.connection.close();
+        this.runtime.stop();
+    }
+
+    @Benchmark
+    public long smallRequest() throws Exception {
+        return this.connection.performOperationWhileIWait(this.operands);
+    }
+}
@@ -0,0 +1,79 @@
+package com.artechra.jcacalculator.impl;
+
+import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.embedded.EmbeddedBootstrapContext;
+import com.artechra.jcacalculator.embedded.EmbeddedWorkManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.resource.spi.work.Work;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of dispatching a calculation work item through the
+ * resource adapter to a WorkManager and being told of its completion,
+ * using the embedded runtime's WorkManager in place of the server's.  The operands are
+ * kept small so that the dispatch, rather than the calculation, dominates.
+ * <p/>
+ * This is in the adapter's implementation package because the work items
+ * aren't part of the adapter's public interface.
+ *
+ * @author Eoin Woods
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkDispatchBenchmark {
+
+    @Param({"ADD", "MULTIPLY"})
+    public String calculationType;
+
+    @Param({"4"})
+    public int workManagerThreads;
+
+    private EmbeddedWorkManager workManager;
+    private CalculatorResourceAdapter adapter;
+    private CalculationType type;
+    private int[] operands;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.workManager = new EmbeddedWorkManager(this.workManagerThreads);
+        this.adapter = new CalculatorResourceAdapter();
+        this.adapter.start(new EmbeddedBootstrapContext(this.workManager));
+        this.type = CalculationType.valueOf(this.calculationType);
+        this.operands = new int[] {2, 3, 4, 5, 6, 7, 8, 9};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.adapter.stop();
+        this.workManager.shutdown();
+    }
+
+    @Benchmark
+    public Long dispatch() throws Exception {
+        FutureResultsCallback callback = new FutureResultsCallback();
+        final CalculationWorkItem item = new CalculationWorkItem(0, this.type, Operands.of(this.operands), callback);
+        this.adapter.runWorkObject(item, new WorkCompletionCallback() {
+            public void onWorkCompletion(Work completedWorkItem, int status, Exception workItemException) {
+                item.deliverResult(workItemException);
+            }
+        });
+        return callback.getFuture().get();
+    }
+}
@@ -0,0 +1,108 @@
+package com.artechra.calculator;
+
+/**
+ * The inner loops used by the calculator for its primitive operand forms.
+ * <p/>
+ * Each kernel keeps four independent accumulators rather than one so that
+ * successive additions or multiplications don't have to wait for each other.
+ * This lets the CPU overlap them and gives the JIT compiler a loop shape it
+ * can vectorise.  Because long addition and multiplication wrap modulo 2^64
+ * they are associative and commutative, so combining the partial results at
+ * the end gives exactly the same answer (including on overflow) as the
+ * simple left to right loop.
+ *
+ * @author Eoin Woods
+ */
+final class ArithmeticKernels {
+
+    private ArithmeticKernels() {
+    }
+
+    /**
+     * Add up the operands in a range of an array
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the sum of the operands (zero if the range is empty)
+     */
+    static long sum(int[] operands, int from, int to) {
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int idx = from;
+        for (int end = to - 3; idx < end; idx += 4) {
+            s0 += operands[idx];
+            s1 += operands[idx + 1];
+            s2 += operands[idx + 2];
+            s3 += operands[idx + 3];
+        }
+        for (; idx < to; idx++) {
+            s0 += operands[idx];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Multiply together the operands in a range of an array
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the product of the operands (one if the range is empty)
+     */
+    static long product(int[] operands, int from, int to) {
+        long p0 = 1, p1 = 1, p2 = 1, p3 = 1;
+        int idx = from;
+        for (int end = to - 3; idx < end; idx += 4) {
+            p0 *= operands[idx];
+            p1 *= operands[idx + 1];
+            p2 *= operands[idx + 2];
+            p3 *= operands[idx + 3];
+        }
+        for (; idx < to; idx++) {
+            p0 *= operands[idx];
+        }
+        return (p0 * p1) * (p2 * p3);
+    }
+
+    /**
+     * Add up the operands in a range of an array
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the sum of the operands (zero if the range is empty)
+     */
+    static long sum(long[] operands, int from, int to) {
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int idx = from;
+        for (int end = to - 3; idx < end; idx += 4) {
+            s0 += operands[idx];
+            s1 += operands[idx + 1];
+            s2 += operands[idx + 2];
+            s3 += operands[idx + 3];
+        }
+        for (; idx < to; idx++) {
+            s0 += operands[idx];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Multiply together the operands in a range of an array
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the product of the operands (one if the range is empty)
+     */
+    static long product(long[] operands, int from, int to) {
+        long p0 = 1, p1 = 1, p2 = 1, p3 = 1;
+        int idx = from;
+        for (int end = to - 3; idx < end; idx += 4) {
+            p0 *= operands[idx];
+            p1 *= operands[idx + 1];
+            p2 *= operands[idx + 2];
+            p3 *= operands[idx + 3];
+        }
+        for (; idx < to; idx++) {
+            p0 *= operands[idx];
+        }
+        return (p0 * p1) * (p2 * p3);
+    }
+}
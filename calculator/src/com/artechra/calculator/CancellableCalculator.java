@@ -1,23 +1,108 @@
 package com.artechra.calculator;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.IntBuffer;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * A simple, but slightly odd, calculator class, which performs a
  * specified calculation on a list of operands, but can be cancelled
  * while this happens.
+ * <p/>
+ * As well as lists of Integer objects, the calculator accepts operands
+ * as primitive arrays and int buffers.  These are processed without
+ * any boxing, accumulating the result in a long (which wraps silently
+ * if the result overflows, just as the list version does).  Primitive
+ * operands are processed in chunks by the ArithmeticKernels loops and
+ * cancellation is checked between chunks.  Iterators and binary input
+ * streams are also accepted, which are processed as the operands arrive.
+ * <p/>
+ * In exact mode a result that overflows a long is not wrapped.  The calculation
+ * still runs in a long until the point at which it would overflow, and only from
+ * there on is the result carried in a BigInteger, which getOverflowResult()
+ * returns.  Exact calculations are never split up to run in parallel.
  *
  * @author Eoin Woods
  */
 public class CancellableCalculator {
+    // The number of primitive operands processed between checks for cancellation
+    static final int CHUNK_SIZE = 4096 ;
+
     private volatile boolean exit ;
     private long calculationDelayMsec ;
+    private int parallelThreshold ;
+    private ForkJoinPool pool ;
+    private boolean exact ;
+    private BigInteger overflowResult ;
 
     /**
      * Create an initialised calculator ready for use
      */
     public CancellableCalculator() {
         this.calculationDelayMsec = 0 ;
+        this.parallelThreshold = 0 ;
+        this.pool = null ;
+    }
+
+    /**
+     * Set the number of operands at which calculations are split up and run in
+     * parallel on a fork/join pool.  Addition and multiplication are associative
+     * so the result is the same either way.  Only arrays, heap int buffers and
+     * random access lists are split.
+     * @param threshold the smallest operand count to split, or zero to never split
+     */
+    public void setParallelThreshold(int threshold) {
+        this.parallelThreshold = threshold ;
+    }
+
+    /**
+     * Return the number of operands at which calculations are run in parallel
+     * @return the threshold, or zero if calculations are never split
+     */
+    public int getParallelThreshold() {
+        return this.parallelThreshold ;
+    }
+
+    /**
+     * Set the fork/join pool used for parallel calculations
+     * @param pool the pool to use, or null to use the common pool
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool ;
+    }
+
+    /**
+     * Set whether calculations are exact, so that a result which overflows a long
+     * is kept in full (see getOverflowResult()) rather than wrapping
+     * @param exact true for exact calculations, false for wrapping long arithmetic
+     */
+    public void setExact(boolean exact) {
+        this.exact = exact ;
+    }
+
+    /**
+     * Are calculations exact?
+     * @return true if results which overflow a long are kept in full
+     */
+    public boolean isExact() {
+        return this.exact ;
+    }
+
+    /**
+     * Return the full result of the last exact calculation, if it overflowed a long.
+     * In that case the value calculate() returned is the low 64 bits of this result,
+     * which is the same value that a wrapping calculation would have returned.
+     * @return the result, or null if it fitted in a long (or the calculation wasn't exact)
+     */
+    public BigInteger getOverflowResult() {
+        return this.overflowResult ;
     }
 
     /**
@@ -30,31 +115,231 @@ public class CancellableCalculator {
      */
     public Long calculate(Operation calculationType, List<Integer> operands)
             throws IllegalStateException, IllegalArgumentException {
-        Long result = null ;
         this.exit = false ;
+        this.overflowResult = null ;
+        if (operands instanceof RandomAccess && isParallel(operands.size())) {
+            checkArguments(calculationType, operands.size()) ;
+            long result = splitAndCalculate(calculationType == Operation.ADDITION, null, null, operands, 0, operands.size()) ;
+            return this.exit ? null : result ;
+        }
+        boolean add = (calculationType == Operation.ADDITION) ;
+        long result = 0 ;
+        boolean first = true ;
         for (int operand : operands) {
-            if (this.calculationDelayMsec > 0) {
-                try {
-                    Thread.sleep(this.calculationDelayMsec) ;
-                } catch(InterruptedException ie) {
-                    throw new IllegalStateException("Calculation delay interrupted", ie) ;
-                }
-            }
-            if (result == null) {
-                result = (long)operand ;
+            pause() ;
+            if (first) {
+                result = operand ;
+                first = false ;
             } else if (calculationType == Operation.ADDITION) {
-                result += operand;
+                result = this.exact ? exactStep(true, result, operand) : result + operand;
             } else if (calculationType == Operation.MULTIPLICATION) {
-                result *= operand;
+                result = this.exact ? exactStep(false, result, operand) : result * operand;
             } else {
                 throw new IllegalArgumentException("Unexpected calculation type found: " + calculationType);
             }
             if (this.exit) {
-                result = null ;
-                break ;
+                return null ;
             }
         }
-        return result ;
+        if (first) {
+            return null ;
+        }
+        return this.exact ? finishExact(add, result) : result ;
+    }
+
+    /**
+     * Perform the specified calculation operation on an array of operands.  If
+     * the calculation is cancelled the value returned is meaningless and
+     * wasCancelled() will return true.
+     * @param calculationType the operation to perform
+     * @param operands the numbers to perform the operation on
+     * @return the result of performing the operation on the operands
+     * @throws IllegalStateException if the calculator is interrupted during a sleep
+     * @throws IllegalArgumentException if the parameters can't be used
+     */
+    public long calculate(Operation calculationType, int[] operands)
+            throws IllegalStateException, IllegalArgumentException {
+        checkArguments(calculationType, operands == null ? 0 : operands.length) ;
+        this.exit = false ;
+        this.overflowResult = null ;
+        boolean add = (calculationType == Operation.ADDITION) ;
+        if (this.exact) {
+            return finishExact(add, calculateExactRange(add, operands, 0, operands.length)) ;
+        }
+        if (isParallel(operands.length)) {
+            return splitAndCalculate(add, operands, null, null, 0, operands.length) ;
+        }
+        return calculateRange(add, operands, 0, operands.length) ;
+    }
+
+    /**
+     * Perform the specified calculation operation on an array of long operands.  If
+     * the calculation is cancelled the value returned is meaningless and
+     * wasCancelled() will return true.
+     * @param calculationType the operation to perform
+     * @param operands the numbers to perform the operation on
+     * @return the result of performing the operation on the operands
+     * @throws IllegalStateException if the calculator is interrupted during a sleep
+     * @throws IllegalArgumentException if the parameters can't be used
+     */
+    public long calculate(Operation calculationType, long[] operands)
+            throws IllegalStateException, IllegalArgumentException {
+        checkArguments(calculationType, operands == null ? 0 : operands.length) ;
+        this.exit = false ;
+        this.overflowResult = null ;
+        boolean add = (calculationType == Operation.ADDITION) ;
+        if (this.exact) {
+            return finishExact(add, calculateExactRange(add, operands, 0, operands.length)) ;
+        }
+        if (isParallel(operands.length)) {
+            return splitAndCalculate(add, null, operands, null, 0, operands.length) ;
+        }
+        return calculateRange(add, operands, 0, operands.length) ;
+    }
+
+    /**
+     * Perform the specified calculation operation on the operands between the
+     * buffer's position and its limit.  The buffer's position is not changed.  If
+     * the calculation is cancelled the value returned is meaningless and
+     * wasCancelled() will return true.
+     * @param calculationType the operation to perform
+     * @param operands the numbers to perform the operation on
+     * @return the result of performing the operation on the operands
+     * @throws IllegalStateException if the calculator is interrupted during a sleep
+     * @throws IllegalArgumentException if the parameters can't be used
+     */
+    public long calculate(Operation calculationType, IntBuffer operands)
+            throws IllegalStateException, IllegalArgumentException {
+        checkArguments(calculationType, operands == null ? 0 : operands.remaining()) ;
+        boolean add = (calculationType == Operation.ADDITION) ;
+        int start = operands.position() ;
+        int end = operands.limit() ;
+        this.exit = false ;
+        this.overflowResult = null ;
+        if (operands.hasArray()) {
+            int offset = operands.arrayOffset() ;
+            if (this.exact) {
+                return finishExact(add, calculateExactRange(add, operands.array(), offset + start, offset + end)) ;
+            }
+            if (isParallel(end - start)) {
+                return splitAndCalculate(add, operands.array(), null, null, offset + start, offset + end) ;
+            }
+            return calculateRange(add, operands.array(), offset + start, offset + end) ;
+        }
+        // Direct buffers can't use the array kernels, but still only check for
+        // cancellation once per chunk
+        long result = add ? 0 : 1 ;
+        for (int from = start; from < end && !this.exit; ) {
+            int to = from + Math.min(CHUNK_SIZE, end - from) ;
+            if (this.calculationDelayMsec > 0) {
+                for (int idx = from; idx < to && !this.exit; idx++) {
+                    pause() ;
+                    result = this.exact ? exactStep(add, result, operands.get(idx)) :
+                            add ? result + operands.get(idx) : result * operands.get(idx) ;
+                }
+            } else if (this.exact) {
+                for (int idx = from; idx < to; idx++) {
+                    result = exactStep(add, result, operands.get(idx)) ;
+                }
+            } else {
+                for (int idx = from; idx < to; idx++) {
+                    result = add ? result + operands.get(idx) : result * operands.get(idx) ;
+                }
+            }
+            from = to ;
+        }
+        return this.exact ? finishExact(add, result) : result ;
+    }
+
+    /**
+     * Perform the specified calculation operation on the operands returned by an
+     * iterator, processing them as they arrive so that they never all need to be
+     * held in memory.  If the iterator is a PrimitiveIterator.OfInt (such as the
+     * one returned by IntStream#iterator()) the operands aren't boxed.  If the
+     * calculation is cancelled the value returned is meaningless and wasCancelled()
+     * will return true.
+     * @param calculationType the operation to perform
+     * @param operands the numbers to perform the operation on
+     * @return the result of performing the operation on the operands
+     * @throws IllegalStateException if the calculator is interrupted during a sleep
+     * @throws IllegalArgumentException if the parameters can't be used
+     */
+    public long calculate(Operation calculationType, Iterator<Integer> operands)
+            throws IllegalStateException, IllegalArgumentException {
+        checkArguments(calculationType, operands != null && operands.hasNext() ? 1 : 0) ;
+        boolean add = (calculationType == Operation.ADDITION) ;
+        PrimitiveIterator.OfInt ints = (operands instanceof PrimitiveIterator.OfInt) ?
+                (PrimitiveIterator.OfInt) operands : null ;
+        int chunkSize = (this.calculationDelayMsec > 0 ? 1 : CHUNK_SIZE) ;
+        this.exit = false ;
+        this.overflowResult = null ;
+        long result = add ? 0 : 1 ;
+        while (operands.hasNext() && !this.exit) {
+            for (int count = 0; count < chunkSize && operands.hasNext(); count++) {
+                pause() ;
+                int operand = (ints != null ? ints.nextInt() : operands.next()) ;
+                result = this.exact ? exactStep(add, result, operand) : add ? result + operand : result * operand ;
+            }
+        }
+        return this.exact ? finishExact(add, result) : result ;
+    }
+
+    /**
+     * Perform the specified calculation operation on a stream of binary operands,
+     * each a four byte big-endian int (as written by DataOutputStream#writeInt()).
+     * The stream is read and processed a chunk at a time until it ends, so the
+     * operands never all need to be held in memory.  The stream is not closed.  If
+     * the calculation is cancelled the value returned is meaningless and
+     * wasCancelled() will return true.
+     * @param calculationType the operation to perform
+     * @param operands the stream of numbers to perform the operation on
+     * @return the result of performing the operation on the operands
+     * @throws IllegalStateException if the stream can't be read or the calculator is interrupted during a sleep
+     * @throws IllegalArgumentException if the parameters can't be used or the stream ends part way through an operand
+     */
+    public long calculate(Operation calculationType, InputStream operands)
+            throws IllegalStateException, IllegalArgumentException {
+        checkArguments(calculationType, operands == null ? 0 : 1) ;
+        boolean add = (calculationType == Operation.ADDITION) ;
+        boolean slow = (this.calculationDelayMsec > 0) ;
+        byte[] buffer = new byte[CHUNK_SIZE * 4] ;
+        int buffered = 0 ;
+        boolean empty = true ;
+        this.exit = false ;
+        this.overflowResult = null ;
+        long result = add ? 0 : 1 ;
+        try {
+            while (!this.exit) {
+                int read = operands.read(buffer, buffered, buffer.length - buffered) ;
+                if (read < 0) {
+                    break ;
+                }
+                buffered += read ;
+                int whole = buffered & ~3 ;
+                // Slow calculations check for cancellation after every operand
+                for (int pos = 0; pos < whole && !(slow && this.exit); pos += 4) {
+                    pause() ;
+                    int operand = (buffer[pos] << 24) | ((buffer[pos + 1] & 0xff) << 16) |
+                            ((buffer[pos + 2] & 0xff) << 8) | (buffer[pos + 3] & 0xff) ;
+                    result = this.exact ? exactStep(add, result, operand) : add ? result + operand : result * operand ;
+                    empty = false ;
+                }
+                // Keep any partial operand for the next read
+                System.arraycopy(buffer, whole, buffer, 0, buffered - whole) ;
+                buffered -= whole ;
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed to read operands from stream", ioe) ;
+        }
+        if (!this.exit) {
+            if (buffered != 0) {
+                throw new IllegalArgumentException("Operand stream ended part way through an operand") ;
+            }
+            if (empty) {
+                throw new IllegalArgumentException("At least one operand must be supplied") ;
+            }
+        }
+        return this.exact ? finishExact(add, result) : result ;
     }
 
     /**
@@ -72,4 +357,315 @@ public class CancellableCalculator {
     public boolean wasCancelled() {
         return this.exit ;
     }
+
+    /**
+     * Perform a calculation on part of an array of int operands, a chunk at a time,
+     * checking for cancellation between chunks
+     * @param add true for addition, false for multiplication
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the result of the calculation
+     */
+    private long calculateRange(boolean add, int[] operands, int from, int to) {
+        long result = add ? 0 : 1 ;
+        while (from < to && !this.exit) {
+            int chunkEnd = from + Math.min(CHUNK_SIZE, to - from) ;
+            if (this.calculationDelayMsec > 0) {
+                // Slow calculations check for cancellation after every operand
+                for (int idx = from; idx < chunkEnd && !this.exit; idx++) {
+                    pause() ;
+                    result = add ? result + operands[idx] : result * operands[idx] ;
+                }
+            } else if (add) {
+                result += ArithmeticKernels.sum(operands, from, chunkEnd) ;
+            } else {
+                result *= ArithmeticKernels.product(operands, from, chunkEnd) ;
+            }
+            from = chunkEnd ;
+        }
+        return result ;
+    }
+
+    /**
+     * Perform a calculation on part of an array of long operands, a chunk at a time,
+     * checking for cancellation between chunks
+     * @param add true for addition, false for multiplication
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the result of the calculation
+     */
+    private long calculateRange(boolean add, long[] operands, int from, int to) {
+        long result = add ? 0 : 1 ;
+        while (from < to && !this.exit) {
+            int chunkEnd = from + Math.min(CHUNK_SIZE, to - from) ;
+            if (this.calculationDelayMsec > 0) {
+                // Slow calculations check for cancellation after every operand
+                for (int idx = from; idx < chunkEnd && !this.exit; idx++) {
+                    pause() ;
+                    result = add ? result + operands[idx] : result * operands[idx] ;
+                }
+            } else if (add) {
+                result += ArithmeticKernels.sum(operands, from, chunkEnd) ;
+            } else {
+                result *= ArithmeticKernels.product(operands, from, chunkEnd) ;
+            }
+            from = chunkEnd ;
+        }
+        return result ;
+    }
+
+    /**
+     * Perform a calculation on part of a random access list of operands, a chunk
+     * at a time, checking for cancellation between chunks
+     * @param add true for addition, false for multiplication
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the result of the calculation
+     */
+    private long calculateRange(boolean add, List<Integer> operands, int from, int to) {
+        long result = add ? 0 : 1 ;
+        while (from < to && !this.exit) {
+            int chunkEnd = from + Math.min(CHUNK_SIZE, to - from) ;
+            if (this.calculationDelayMsec > 0) {
+                for (int idx = from; idx < chunkEnd && !this.exit; idx++) {
+                    pause() ;
+                    int operand = operands.get(idx) ;
+                    result = add ? result + operand : result * operand ;
+                }
+            } else {
+                for (int idx = from; idx < chunkEnd; idx++) {
+                    int operand = operands.get(idx) ;
+                    result = add ? result + operand : result * operand ;
+                }
+            }
+            from = chunkEnd ;
+        }
+        return result ;
+    }
+
+    /**
+     * Perform an exact calculation on part of an array of int operands, a chunk at a
+     * time, checking for cancellation between chunks.  A chunk of ints can't overflow
+     * a long when added up, so additions still use the summing kernel and only the
+     * chunk totals are checked for overflow.
+     * @param add true for addition, false for multiplication
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the result so far, to be passed to finishExact()
+     */
+    private long calculateExactRange(boolean add, int[] operands, int from, int to) {
+        long result = add ? 0 : 1 ;
+        while (from < to && !this.exit) {
+            int chunkEnd = from + Math.min(CHUNK_SIZE, to - from) ;
+            if (this.calculationDelayMsec > 0) {
+                for (int idx = from; idx < chunkEnd && !this.exit; idx++) {
+                    pause() ;
+                    result = exactStep(add, result, operands[idx]) ;
+                }
+            } else if (add) {
+                result = exactStep(true, result, ArithmeticKernels.sum(operands, from, chunkEnd)) ;
+            } else {
+                for (int idx = from; idx < chunkEnd; idx++) {
+                    result = exactStep(false, result, operands[idx]) ;
+                }
+            }
+            from = chunkEnd ;
+        }
+        return result ;
+    }
+
+    /**
+     * Perform an exact calculation on part of an array of long operands, a chunk at
+     * a time, checking for cancellation between chunks
+     * @param add true for addition, false for multiplication
+     * @param operands the operands
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the result so far, to be passed to finishExact()
+     */
+    private long calculateExactRange(boolean add, long[] operands, int from, int to) {
+        long result = add ? 0 : 1 ;
+        while (from < to && !this.exit) {
+            int chunkEnd = from + Math.min(CHUNK_SIZE, to - from) ;
+            if (this.calculationDelayMsec > 0) {
+                for (int idx = from; idx < chunkEnd && !this.exit; idx++) {
+                    pause() ;
+                    result = exactStep(add, result, operands[idx]) ;
+                }
+            } else {
+                for (int idx = from; idx < chunkEnd; idx++) {
+                    result = exactStep(add, result, operands[idx]) ;
+                }
+            }
+            from = chunkEnd ;
+        }
+        return result ;
+    }
+
+    /**
+     * Apply one operand to the result of an exact calculation.  While the result fits
+     * in a long this is plain long arithmetic plus the overflow test that
+     * Math.addExact() and Math.multiplyExact() make, done here as a branch so that
+     * reaching the overflow point doesn't cost a thrown exception.  On overflow the
+     * result so far is folded into the overflow result and the calculation carries
+     * on in a long from this operand, so later operands are still applied with
+     * primitive arithmetic until the long overflows again.
+     * @param add true for addition, false for multiplication
+     * @param result the result so far (since the last overflow, if there was one)
+     * @param operand the operand to apply
+     * @return the new result (since the last overflow)
+     */
+    private long exactStep(boolean add, long result, long operand) {
+        long next = add ? result + operand : result * operand ;
+        boolean overflowed = add ? ((result ^ next) & (operand ^ next)) < 0 :
+                ((Math.abs(result) | Math.abs(operand)) >>> 31) != 0 &&
+                        ((operand != 0 && next / operand != result) || (result == Long.MIN_VALUE && operand == -1)) ;
+        if (overflowed) {
+            foldOverflow(add, result) ;
+            return operand ;
+        }
+        return next ;
+    }
+
+    /**
+     * Combine the long result of an exact calculation with any overflow result, to
+     * give the final result
+     * @param add true for addition, false for multiplication
+     * @param result the result since the last overflow
+     * @return the result, or its low 64 bits if the full result is in the overflow result
+     */
+    private long finishExact(boolean add, long result) {
+        if (this.overflowResult == null) {
+            return result ;
+        }
+        foldOverflow(add, result) ;
+        // Adding negative operands can bring the result back into range
+        if (this.overflowResult.bitLength() < 64) {
+            long value = this.overflowResult.longValue() ;
+            this.overflowResult = null ;
+            return value ;
+        }
+        return this.overflowResult.longValue() ;
+    }
+
+    /**
+     * Fold part of an exact calculation's result into its overflow result
+     * @param add true for addition, false for multiplication
+     * @param partial the result calculated in a long since the last overflow
+     */
+    private void foldOverflow(boolean add, long partial) {
+        BigInteger value = BigInteger.valueOf(partial) ;
+        if (this.overflowResult == null) {
+            this.overflowResult = value ;
+        } else {
+            this.overflowResult = add ? this.overflowResult.add(value) : this.overflowResult.multiply(value) ;
+        }
+    }
+
+    /**
+     * Should a calculation with this many operands be run in parallel?
+     * @param operandCount the number of operands
+     * @return true if the calculation should be split up
+     */
+    private boolean isParallel(int operandCount) {
+        return !this.exact && this.parallelThreshold > 0 && operandCount >= this.parallelThreshold ;
+    }
+
+    /**
+     * Split a calculation up into ranges and run them in parallel on the fork/join
+     * pool.  Exactly one of the operand arguments should be non-null.
+     * @param add true for addition, false for multiplication
+     * @param ints the operands, if they're in an int array
+     * @param longs the operands, if they're in a long array
+     * @param list the operands, if they're in a list
+     * @param from the index of the first operand to use
+     * @param to the index after the last operand to use
+     * @return the result of the calculation
+     */
+    private long splitAndCalculate(boolean add, int[] ints, long[] longs, List<Integer> list, int from, int to) {
+        ForkJoinPool fjPool = (this.pool != null ? this.pool : ForkJoinPool.commonPool()) ;
+        // Aim for a few ranges per pool thread, but don't split below the chunk size
+        int leafSize = Math.max(CHUNK_SIZE, (to - from) / (fjPool.getParallelism() * 4)) ;
+        return fjPool.invoke(new RangeTask(add, ints, longs, list, from, to, leafSize)) ;
+    }
+
+    /**
+     * A fork/join task which calculates the result for a range of operands by
+     * splitting it in two until the ranges are small enough to calculate directly.
+     * All the tasks check the calculator's cancellation flag, so cancelCalculation()
+     * stops every one of them at its next chunk boundary.
+     */
+    private final class RangeTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 6190127412783658402L;
+
+        private final boolean add ;
+        private final int[] ints ;
+        private final long[] longs ;
+        private final List<Integer> list ;
+        private final int from ;
+        private final int to ;
+        private final int leafSize ;
+
+        RangeTask(boolean add, int[] ints, long[] longs, List<Integer> list, int from, int to, int leafSize) {
+            this.add = add ;
+            this.ints = ints ;
+            this.longs = longs ;
+            this.list = list ;
+            this.from = from ;
+            this.to = to ;
+            this.leafSize = leafSize ;
+        }
+
+        protected Long compute() {
+            if (this.to - this.from <= this.leafSize || exit) {
+                if (this.ints != null) {
+                    return calculateRange(this.add, this.ints, this.from, this.to) ;
+                } else if (this.longs != null) {
+                    return calculateRange(this.add, this.longs, this.from, this.to) ;
+                }
+                return calculateRange(this.add, this.list, this.from, this.to) ;
+            }
+            int mid = (this.from + this.to) >>> 1 ;
+            RangeTask left = new RangeTask(this.add, this.ints, this.longs, this.list, this.from, mid, this.leafSize) ;
+            RangeTask right = new RangeTask(this.add, this.ints, this.longs, this.list, mid, this.to, this.leafSize) ;
+            left.fork() ;
+            long rightResult = right.compute() ;
+            long leftResult = left.join() ;
+            return this.add ? leftResult + rightResult : leftResult * rightResult ;
+        }
+    }
+
+    /**
+     * Check that a calculation can be performed
+     * @param calculationType the operation to perform
+     * @param operandCount the number of operands supplied
+     * @throws IllegalArgumentException if the operation is unknown or there are no operands
+     */
+    private void checkArguments(Operation calculationType, int operandCount)
+            throws IllegalArgumentException {
+        if (calculationType != Operation.ADDITION && calculationType != Operation.MULTIPLICATION) {
+            throw new IllegalArgumentException("Unexpected calculation type found: " + calculationType);
+        }
+        if (operandCount == 0) {
+            throw new IllegalArgumentException("At least one operand must be supplied");
+        }
+    }
+
+    /**
+     * Sleep for the calculation delay, if one is set, before processing each operand
+     * @throws IllegalStateException if the calculator is interrupted during the sleep
+     */
+    private void pause() throws IllegalStateException {
+        if (this.calculationDelayMsec > 0) {
+            try {
+                Thread.sleep(this.calculationDelayMsec) ;
+            } catch(InterruptedException ie) {
+                throw new IllegalStateException("Calculation delay interrupted", ie) ;
+            }
+        }
+    }
 }
@@ -3,6 +3,7 @@ package com.artechra.jcatest;
 import com.artechra.jcacalculator.CalculatorConnection;
 import com.artechra.jcacalculator.CalculatorConnectionFactory;
 import com.artechra.jcacalculator.CalculationType;
+import com.artechra.jcacalculator.ResultOverflowException;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -11,6 +12,7 @@ import javax.servlet.ServletException;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.resource.Referenceable;
+import javax.resource.ResourceException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
@@ -76,6 +78,12 @@ public class JcaTestServlet extends HttpServlet {
             try {
                 jcaConnection = this.getConnection(ct);
                 out.println(jcaConnection.performOperationWhileIWait(operands));
+            } catch (ResourceException ex) {
+                // an exact calculation whose result doesn't fit in a long still has a result
+                if (!(ex.getCause() instanceof ResultOverflowException)) {
+                    throw new ServletException("Unexpected exception from the JCA adapter when executing an operation", ex);
+                }
+                out.println(((ResultOverflowException) ex.getCause()).getResult());
             } catch (Exception ex) {
                 throw new ServletException("Unexpected exception from the JCA adapter when executing an operation", ex);
             } finally {
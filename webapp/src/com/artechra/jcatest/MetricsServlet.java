@@ -0,0 +1,51 @@
+package com.artechra.jcatest;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+/**
+ * This class implements a servlet that returns the Calculator JCA Adapter's
+ * metrics as plain text, in the Prometheus text format, so that they can be
+ * scraped by a monitoring system.  The adapter publishes its metrics as a JMX
+ * MBean, so this servlet just finds every adapter's metrics MBean in the
+ * platform MBean server and prints its report.
+ *
+ * @author Eoin Woods
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = -3187950385386622218L;
+
+    /**
+     * Implement a response to HTTP's GET verb
+     *
+     * @param req  the HTTP request parameters
+     * @param resp the HTTP response object to use to send the response
+     * @throws ServletException if the metrics can't be read
+     * @throws IOException      if a simple network problem occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        resp.setContentType("text/plain; version=0.0.4");
+        PrintWriter out = resp.getWriter();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> names = server.queryNames(
+                    new ObjectName("com.artechra.jcacalculator:type=AdapterMetrics,*"), null);
+            for (ObjectName name : names) {
+                out.println("# Metrics from " + name);
+                out.print(server.getAttribute(name, "Report"));
+            }
+        } catch (Exception ex) {
+            throw new ServletException("Could not read the Calculator JCA Adapter's metrics", ex);
+        }
+    }
+}